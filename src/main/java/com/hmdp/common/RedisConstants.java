@@ -11,11 +11,29 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_TYPE_KEY = "type:shop:";
+    public static final String CACHE_TYPE_VERSION_KEY = "type:shop:version";
+    public static final String CACHE_TYPE_CHANNEL = "type:shop:refresh";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_HOT_KEY_CHANNEL = "cache:hotkey";
+    public static final String SHOP_BLOOM_KEY = "bloom:shop";
+    // 两次重建之间新增的商铺id，重建替换位图之后重新写入
+    public static final String SHOP_BLOOM_ADDS_KEY = "bloom:shop:adds";
+    public static final String SHOP_BLOOM_CHANNEL = "bloom:shop";
+    public static final String LOCK_SHOP_BLOOM_KEY = "lock:bloom:shop";
+
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String LOCK_USER_KEY = "lock:user:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    public static final String LOCK_SECKILL_PRELOAD_KEY = "lock:seckill:preload";
+    public static final String SECKILL_ORDER_STATUS_KEY = "order:status:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
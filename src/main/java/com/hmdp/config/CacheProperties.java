@@ -0,0 +1,168 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 缓存的配置，对应 application.yaml 中的 hmdp.cache
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    // 缓存值的编码格式：binary 紧凑的二进制格式，没有注册的类型仍然用json；json 原来的格式
+    private Codec codec = Codec.BINARY;
+
+    private Local local = new Local();
+
+    private SingleFlight singleFlight = new SingleFlight();
+
+    private Bloom bloom = new Bloom();
+
+    private EarlyRefresh earlyRefresh = new EarlyRefresh();
+
+    private Rebuild rebuild = new Rebuild();
+
+    private WarmUp warmUp = new WarmUp();
+
+    private Metrics metrics = new Metrics();
+
+    private HotKey hotKey = new HotKey();
+
+    private TypeCatalog typeCatalog = new TypeCatalog();
+
+    private RefreshAhead refreshAhead = new RefreshAhead();
+
+    @Data
+    public static class Local {
+        // 是否在redis前面加一层进程内缓存，保存反序列化之后的对象
+        private boolean enabled = true;
+        // 本地缓存最多的条目数，超过时淘汰最近没有访问过的
+        private int maxSize = 10000;
+        // 本地缓存条目的最长存活秒数，丢失失效广播时脏数据最多保留这么久
+        private long ttlSeconds = 60;
+    }
+
+    @Data
+    public static class SingleFlight {
+        // 缓存未命中时是否按key合并数据库查询
+        private boolean enabled = true;
+        // 等待其它线程加载结果的最长毫秒数，超时抛出异常
+        private long timeoutMs = 3000;
+    }
+
+    @Data
+    public static class Bloom {
+        // 查询商铺缓存之前是否先用布隆过滤器拦截不存在的id
+        private boolean enabled = true;
+        // 预计的商铺数量，实际数量更多时按实际数量构建
+        private long expectedInsertions = 1000000;
+        // 期望的误判率，和预计数量一起决定位图的大小
+        private double fpp = 0.01;
+        // 从数据库重建的间隔毫秒数，清理已经删除的id
+        private long rebuildIntervalMs = 3600000;
+        // 重建时每次从数据库读取的id数
+        private int pageSize = 10000;
+    }
+
+    @Data
+    public static class EarlyRefresh {
+        // 逻辑过期的缓存是否在到期之前按概率提前刷新
+        private boolean enabled = true;
+        // 大于1时更早刷新，小于1时更晚
+        private double beta = 1.0;
+        // 还没有测量到重建耗时之前使用的估计值，毫秒
+        private long initialRebuildMs = 50;
+    }
+
+    @Data
+    public static class Rebuild {
+        // 异步重建缓存的线程数
+        private int threads = 10;
+        // 等待重建的任务数上限，满了之后拒绝，调用方继续返回旧数据
+        private int queueCapacity = 1000;
+        // 同一个key前缀同时排队和执行的重建数上限
+        private int maxPerPrefix = 8;
+        // 关闭时等待已提交任务执行完的毫秒数
+        private long shutdownTimeoutMs = 5000;
+    }
+
+    @Data
+    public static class WarmUp {
+        // 启动时是否把所有商铺写入缓存
+        private boolean enabled = true;
+        // 并行预热的线程数，同时也是占用的数据库连接数
+        private int parallelism = 4;
+        // 每次从数据库读取并用一次pipeline写入的商铺数
+        private int chunkSize = 1000;
+        // 过期时间在 [ttl, ttl * (1 + ttlSpreadRatio)] 之间随机分散
+        private double ttlSpreadRatio = 0.5;
+    }
+
+    @Data
+    public static class Metrics {
+        // 每个key前缀跟踪的热点key数
+        private int topKeysCapacity = 100;
+        // 每多少次访问采样一次热点key
+        private int topKeysSampleRate = 16;
+    }
+
+    @Data
+    public static class HotKey {
+        // 是否探测热点key，热点key放进短过期的近端缓存，本地缓存关闭时也生效
+        private boolean enabled = true;
+        // Count-Min Sketch的行数和每行的计数器数，内存占用 depth * width * 4 字节
+        private int depth = 4;
+        private int width = 4096;
+        // 每多少次访问计数一次，每次按sampleRate累加
+        private int sampleRate = 8;
+        // 时间窗口的毫秒数，每个窗口结束时计数减半
+        private long windowMs = 1000;
+        // 估计的访问次数达到这个值时成为热点，每个窗口访问q次的key计数稳定在2q左右
+        private int threshold = 2000;
+        // 本节点同时跟踪的热点key数上限
+        private int topK = 32;
+        // 热点key在近端缓存中的存活毫秒数，丢失失效广播时脏数据最多保留这么久
+        private long nearCacheTtlMs = 2000;
+        // 是否把本节点的热点key广播给其它节点
+        private boolean broadcast = true;
+        // 其它节点广播的热点key在本节点保持热点的毫秒数
+        private long remoteTtlMs = 5000;
+        // 最多保存的其它节点的热点key数
+        private int maxRemoteKeys = 256;
+    }
+
+    @Data
+    public static class TypeCatalog {
+        // 后台检查商铺类型版本号的间隔毫秒数，兜底丢失的刷新广播
+        private long versionCheckMs = 30000;
+    }
+
+    @Data
+    public static class RefreshAhead {
+        // 是否在后台提前刷新经常读取、即将逻辑过期的缓存
+        private boolean enabled = true;
+        // 扫描间隔毫秒数
+        private long tickMs = 1000;
+        // 离逻辑过期不到这么多毫秒时刷新
+        private long aheadMs = 10000;
+        // 所有节点合计每秒最多因为提前刷新查询数据库的次数
+        private int maxQps = 50;
+        // 最多跟踪的key数，超过时新的key不再跟踪
+        private int maxKeys = 10000;
+        // 访问次数衰减一半的毫秒数
+        private long halfLifeMs = 60000;
+        // 衰减后的访问次数达到这个值才提前刷新
+        private double minScore = 2;
+        // 超过这么多毫秒没有读取的key不再跟踪
+        private long idleMs = 600000;
+    }
+
+    public enum Codec {
+        JSON, BINARY
+    }
+}
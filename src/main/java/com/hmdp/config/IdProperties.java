@@ -0,0 +1,52 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 全局id生成的配置，对应 application.yaml 中的 hmdp.id
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.id")
+public class IdProperties {
+
+    // 使用的id生成器：redis 依赖redis计数器；snowflake 只在启动和后台续约时访问redis，生成id完全在本地
+    private Generator generator = Generator.REDIS;
+
+    // 序列号的分配方式：increment 每个id一次INCR；segment 一次INCRBY租用一段序列号，在本地分配
+    private Mode mode = Mode.SEGMENT;
+
+    private Segment segment = new Segment();
+
+    private Snowflake snowflake = new Snowflake();
+
+    @Data
+    public static class Segment {
+        // 每次租用的序列号数量
+        private int step = 1000;
+        // 当前段剩余的比例低于这个值时异步预取下一段
+        private double prefetchRatio = 0.2;
+        // 切换分段时等待预取结果的最长毫秒数，超时后同步租用
+        private long prefetchWaitMs = 100;
+    }
+
+    @Data
+    public static class Snowflake {
+        // worker id租约的过期毫秒数，后台每隔三分之一的时间续约一次
+        private long leaseTtlMs = 30000;
+        // 时钟回拨在这个毫秒数以内时，序列号用完后等待时钟追上；超过时不再等待，借用未来的毫秒继续生成并打印告警
+        private long maxBackwardMs = 5000;
+    }
+
+    public enum Generator {
+        REDIS, SNOWFLAKE
+    }
+
+    public enum Mode {
+        INCREMENT, SEGMENT
+    }
+}
@@ -1,8 +1,10 @@
 package com.hmdp.config;
 
+import cn.hutool.core.util.StrUtil;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -12,10 +14,13 @@ import org.springframework.context.annotation.Configuration;
  */
 @Configuration
 public class RedissonConfig {
+    // 与spring.redis使用同一份连接配置，切换到本地或者测试用的redis时只需要改一处
     @Bean
-    public RedissonClient redissonClient(){
+    public RedissonClient redissonClient(RedisProperties redisProperties){
         Config config = new Config();
-        config.useSingleServer().setAddress("redis://192.168.242.130:6379").setPassword("123456");
+        config.useSingleServer()
+                .setAddress("redis://" + redisProperties.getHost() + ":" + redisProperties.getPort())
+                .setPassword(StrUtil.emptyToNull(redisProperties.getPassword()));
         return Redisson.create(config);
     }
 }
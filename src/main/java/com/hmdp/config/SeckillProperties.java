@@ -0,0 +1,150 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 秒杀下单链路的配置，对应 application.yaml 中的 hmdp.seckill
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    private Batch batch = new Batch();
+
+    private Stream stream = new Stream();
+
+    private Lane lane = new Lane();
+
+    private SoldOut soldOut = new SoldOut();
+
+    private Segment segment = new Segment();
+
+    private Preload preload = new Preload();
+
+    private Status status = new Status();
+
+    private Journal journal = new Journal();
+
+    private PayTimeout payTimeout = new PayTimeout();
+
+    @Data
+    public static class Batch {
+        // 是否开启批量写库，关闭时逐条处理订单
+        private boolean enabled = true;
+        // 一批最多攒多少个订单
+        private int size = 100;
+        // 攒批最多等待的毫秒数
+        private long lingerMs = 10;
+    }
+
+    @Data
+    public static class Stream {
+        // 是否使用redis stream作为订单队列，关闭时使用本地阻塞队列，重启会丢失未写库的订单
+        private boolean enabled = true;
+        // 订单消息队列的key
+        private String key = "stream.orders";
+        // 消费组
+        private String group = "g1";
+        // 当前节点的消费者名称，集群中每个节点必须不同，并且重启前后保持一致才能接着处理自己的pending-list
+        private String consumer = "c1";
+        // 没有消息时XREADGROUP阻塞的毫秒数
+        private long blockMs = 2000;
+        // 写库失败后重试的间隔毫秒数
+        private long retryIntervalMs = 20;
+        // 启动时接管其它消费者超过这个毫秒数仍未确认的消息
+        private long claimIdleMs = 60000;
+        // 启动时最多接管的消息数
+        private long claimCount = 10000;
+    }
+
+    @Data
+    public static class Lane {
+        // 写库通道的数量，每个通道一个线程，不要超过数据库连接池的大小
+        private int count = 4;
+        // 每个通道环形缓冲区的容量，会向上取整为2的幂
+        private int queueCapacity = 256 * 1024;
+        // 缓冲区满时的处理策略：reject 直接拒绝，block 限时等待空位，spill 溢出到无界队列
+        private OverflowPolicy overflowPolicy = OverflowPolicy.REJECT;
+        // block策略下最多等待的毫秒数，超时后拒绝
+        private long offerTimeoutMs = 50;
+        // 非stream模式下写库失败的订单重新放回通道的等待毫秒数，每失败一次加倍，最多maxRetryDelayMs
+        private long retryDelayMs = 100;
+        private long maxRetryDelayMs = 10000;
+    }
+
+    public enum OverflowPolicy {
+        REJECT, BLOCK, SPILL
+    }
+
+    @Data
+    public static class SoldOut {
+        // 是否开启本地售罄标记
+        private boolean enabled = true;
+        // 售罄标记的有效毫秒数，过期后放一个请求去redis重新确认
+        private long recheckMs = 1000;
+    }
+
+    @Data
+    public static class Segment {
+        // 新增秒杀券时库存分成的段数，小于等于1时不分段
+        private int count = 1;
+        // 每段至少分到的库存，库存太少时减少段数，避免大部分段很快被扣完而频繁地跨段查找
+        private int minStockPerSegment = 100;
+    }
+
+    @Data
+    public static class Preload {
+        // 定时把进行中的秒杀券同步到redis的间隔毫秒数
+        private long refreshIntervalMs = 60000;
+    }
+
+    @Data
+    public static class Status {
+        // 订单状态记录的保留秒数
+        private long ttlSeconds = 1800;
+        // 长轮询最长等待的毫秒数
+        private long maxWaitMs = 30000;
+        // 批量检查其它节点写库结果的间隔毫秒数
+        private long pollIntervalMs = 100;
+    }
+
+    @Data
+    public static class Journal {
+        // 本地队列模式下是否把已受理的订单写入预写日志，stream模式下订单已经持久化在redis中，不使用日志
+        private boolean enabled = true;
+        // 日志文件所在的目录
+        private String dir = "data/seckill-journal";
+        // 每个分段文件的字节数，写满后滚动到新的分段
+        private long segmentBytes = 64L * 1024 * 1024;
+        // 刷盘策略：always 每个订单都等待落盘，并发的写入共享一次刷盘；interval 定时刷盘；none 交给操作系统
+        private FsyncPolicy fsyncPolicy = FsyncPolicy.INTERVAL;
+        // 定时刷盘和检查点落盘的间隔毫秒数
+        private long fsyncIntervalMs = 10;
+    }
+
+    @Data
+    public static class PayTimeout {
+        // 是否自动取消超时未支付的秒杀券订单并归还库存，默认关闭
+        private boolean enabled = false;
+        // 下单后多少秒内未支付就取消
+        private long timeoutSeconds = 900;
+        // 时间轮一个刻度的毫秒数和格子数，格子数会向上取整为2的幂
+        private long tickMs = 100;
+        private int wheelSize = 4096;
+        // 到期的订单每批最多处理多少个
+        private int batchSize = 500;
+        // 处理失败后重试的间隔毫秒数
+        private long retryDelayMs = 5000;
+        // 启动时从数据库加载未支付订单，每页的数量
+        private int rebuildPageSize = 10000;
+    }
+
+    public enum FsyncPolicy {
+        ALWAYS, INTERVAL, NONE
+    }
+}
@@ -5,7 +5,6 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.pojo.dto.Result;
 import com.hmdp.pojo.dto.UserDTO;
 import com.hmdp.pojo.entity.Blog;
-import com.hmdp.pojo.entity.User;
 import com.hmdp.service.IBlogService;
 import com.hmdp.service.IUserService;
 import com.hmdp.common.SystemConstants;
@@ -14,6 +13,7 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -71,13 +71,16 @@ public class BlogController {
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog ->{
-            Long userId = blog.getUserId();
-            User user = userService.getById(userId);
-            blog.setName(user.getNickName());
-            blog.setIcon(user.getIcon());
-        });
+        // 批量查询用户
+        List<UserDTO> users = userService.queryUserByIds(
+                records.stream().map(Blog::getUserId).collect(Collectors.toList()));
+        for (int i = 0; i < records.size(); i++) {
+            UserDTO user = users.get(i);
+            if (user != null) {
+                records.get(i).setName(user.getNickName());
+                records.get(i).setIcon(user.getIcon());
+            }
+        }
         return Result.ok(records);
     }
 }
@@ -0,0 +1,76 @@
+package com.hmdp.controller;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.pojo.dto.Result;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.MetricsSource;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 运行指标的查询接口，指标中包含缓存key（其中有用户id），需要登录后访问
+ */
+@RestController
+@RequestMapping("/metrics")
+public class MetricsController {
+
+    @Resource
+    private List<MetricsSource> metricsSources;
+
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    /**
+     * 查询所有的指标
+     * @return 按分组名组织的指标
+     */
+    @GetMapping
+    public Result queryMetrics() {
+        Map<String, Object> metrics = new LinkedHashMap<>();
+        for (MetricsSource source : metricsSources) {
+            metrics.put(source.getMetricsName(), source.getMetrics());
+        }
+        return Result.ok(metrics);
+    }
+
+    /**
+     * 查询某一组指标
+     * @param name 分组名
+     * @return 该分组的指标
+     */
+    @GetMapping("/{name}")
+    public Result queryMetrics(@PathVariable("name") String name) {
+        for (MetricsSource source : metricsSources) {
+            if (source.getMetricsName().equals(name)) {
+                return Result.ok(source.getMetrics());
+            }
+        }
+        return Result.fail("指标分组不存在");
+    }
+
+    /**
+     * 查询缓存的热点key，计数是采样估计的上界
+     * @param prefix key前缀，不传时返回所有前缀
+     * @param limit 每个前缀返回的个数，限制在 1 到统计的容量之间
+     * @return 按前缀组织的热点key
+     */
+    @GetMapping("/cache/top-keys")
+    public Result queryTopKeys(@RequestParam(value = "prefix", required = false) String prefix,
+                               @RequestParam(value = "limit", defaultValue = "20") Integer limit) {
+        int capacity = cacheProperties.getMetrics().getTopKeysCapacity();
+        return Result.ok(cacheMetrics.topKeys(prefix, Math.max(1, Math.min(limit, capacity))));
+    }
+}
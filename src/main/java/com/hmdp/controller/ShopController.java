@@ -10,6 +10,9 @@ import com.hmdp.common.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -43,10 +46,7 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
-        // 返回店铺id
-        return Result.ok(shop.getId());
+        return shopService.saveShop(shop);
     }
 
     /**
@@ -73,12 +73,13 @@ public class ShopController {
             @RequestParam("typeId") Integer typeId,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
+        // 根据类型分页查询id
         Page<Shop> page = shopService.query()
+                .select("id")
                 .eq("type_id", typeId)
                 .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 批量从缓存中查询商铺
+        return Result.ok(queryShopByIds(page.getRecords()));
     }
 
     /**
@@ -92,11 +93,20 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
+        // 根据名称分页查询id
         Page<Shop> page = shopService.query()
+                .select("id")
                 .like(StrUtil.isNotBlank(name), "name", name)
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 批量从缓存中查询商铺
+        return Result.ok(queryShopByIds(page.getRecords()));
+    }
+
+    private List<Shop> queryShopByIds(List<Shop> records) {
+        List<Shop> shops = shopService.queryShopByIds(
+                records.stream().map(Shop::getId).collect(Collectors.toList()));
+        // 查询id之后被删除的商铺
+        shops.removeIf(Objects::isNull);
+        return shops;
     }
 }
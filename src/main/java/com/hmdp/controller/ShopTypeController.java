@@ -1,15 +1,13 @@
 package com.hmdp.controller;
 
 
-import com.hmdp.pojo.dto.Result;
-import com.hmdp.pojo.entity.ShopType;
 import com.hmdp.service.IShopTypeService;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
-import java.util.List;
 
 /**
  * <p>
@@ -25,8 +23,9 @@ public class ShopTypeController {
     @Resource
     private IShopTypeService typeService;
 
-    @GetMapping("list")
-    public Result queryTypeList() {
-        return typeService.queryTypeList();
+    // 直接返回缓存好的响应体，不再每次序列化
+    @GetMapping(value = "list", produces = MediaType.APPLICATION_JSON_VALUE)
+    public byte[] queryTypeList() {
+        return typeService.queryTypeListBody();
     }
 }
@@ -4,10 +4,13 @@ package com.hmdp.controller;
 import com.hmdp.pojo.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 
@@ -30,4 +33,16 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.seckillVoucher(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的处理状态，支持长轮询
+     * @param orderId 订单id
+     * @param waitMs 订单还在处理中时最多等待的毫秒数，默认立即返回
+     * @return 订单状态：ACCEPTED 已受理，PERSISTED 已落库，FAILED 下单失败
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "wait", defaultValue = "0") Long waitMs) {
+        return voucherOrderService.queryOrderStatus(orderId, waitMs);
+    }
 }
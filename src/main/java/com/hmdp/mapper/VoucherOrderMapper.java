@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.pojo.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,9 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    // 插入订单，用户已经下过这张券的单时忽略，返回实际插入的行数，依赖 (user_id, voucher_id) 唯一索引
+    int insertIgnore(VoucherOrder order);
+
+    // 多行插入，重复的订单被忽略，返回实际插入的行数
+    int insertBatchIgnore(@Param("orders") List<VoucherOrder> orders);
 }
@@ -13,4 +13,7 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    void saveSeckillVoucherToRedis(SeckillVoucher seckillVoucher);
+
+    int preloadSeckillVouchers();
 }
@@ -4,6 +4,8 @@ import com.hmdp.pojo.dto.Result;
 import com.hmdp.pojo.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,9 @@ public interface IShopService extends IService<Shop> {
 
     Result queryShopById(Long id);
 
+    List<Shop> queryShopByIds(List<Long> ids);
+
+    Result saveShop(Shop shop);
+
     Result updateShop(Shop shop);
 }
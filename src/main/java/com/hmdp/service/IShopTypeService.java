@@ -1,6 +1,5 @@
 package com.hmdp.service;
 
-import com.hmdp.pojo.dto.Result;
 import com.hmdp.pojo.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -14,5 +13,9 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IShopTypeService extends IService<ShopType> {
 
-    Result queryTypeList();
+    /**
+     * 查询商铺类型列表，返回序列化好的 Result 的json
+     * @return 响应体
+     */
+    byte[] queryTypeListBody();
 }
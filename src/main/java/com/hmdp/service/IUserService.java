@@ -3,9 +3,11 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.pojo.dto.LoginFormDTO;
 import com.hmdp.pojo.dto.Result;
+import com.hmdp.pojo.dto.UserDTO;
 import com.hmdp.pojo.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.List;
 
 /**
  * <p>
@@ -20,4 +22,6 @@ public interface IUserService extends IService<User> {
     Result sendCode(String phone);
 
     Result login(LoginFormDTO loginForm, HttpSession session);
+
+    List<UserDTO> queryUserByIds(List<Long> ids);
 }
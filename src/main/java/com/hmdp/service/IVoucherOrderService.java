@@ -3,6 +3,9 @@ package com.hmdp.service;
 import com.hmdp.pojo.dto.Result;
 import com.hmdp.pojo.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
 
 /**
  * <p>
@@ -15,6 +18,11 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
+    DeferredResult<Result> queryOrderStatus(Long orderId, Long waitMs);
+
     Result creatVoucherOrder(Long voucherId);
-    void creatVoucherOrder(VoucherOrder voucherOrder);
+    boolean creatVoucherOrder(VoucherOrder voucherOrder);
+    List<VoucherOrder> creatVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    List<VoucherOrder> cancelUnpaidOrders(List<VoucherOrder> voucherOrders);
 }
@@ -1,11 +1,33 @@
 package com.hmdp.service.impl;
 
+import com.hmdp.common.RedisConstants;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.pojo.entity.SeckillVoucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +36,126 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    // 秒杀结束之后元数据在redis中再保留的时间
+    private static final long META_KEEP_SECONDS = TimeUnit.DAYS.toSeconds(1);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private RedissonClient redissonClient;
+
+    // 定时把进行中的秒杀券同步到redis
+    private final ScheduledExecutorService preloadExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    // 项目启动完成后立即预热一次，之后定时检查，redis中缺失的秒杀券（例如redis数据丢失）由数据库补上
+    @EventListener(ApplicationReadyEvent.class)
+    public void startPreload() {
+        preloadExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                int count = preloadSeckillVouchers();
+                log.debug("预热秒杀券{}个", count);
+            } catch (Exception e) {
+                log.error("预热秒杀券异常", e);
+            }
+        }, 0, seckillProperties.getPreload().getRefreshIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        preloadExecutor.shutdownNow();
+    }
+
+    // 新增秒杀券时写入库存和元数据，开启分段库存时把库存均匀地拆到多个key上，余数分给前面的段
+    @Override
+    public void saveSeckillVoucherToRedis(SeckillVoucher seckillVoucher) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int stock = seckillVoucher.getStock();
+        SeckillProperties.Segment segment = seckillProperties.getSegment();
+        int segments = Math.max(1, Math.min(segment.getCount(), stock / Math.max(segment.getMinStockPerSegment(), 1)));
+        Map<String, String> stocks = new HashMap<>(segments * 2);
+        if (segments == 1) {
+            stocks.put(RedisConstants.SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+        } else {
+            for (int i = 0; i < segments; i++) {
+                int segmentStock = stock / segments + (i < stock % segments ? 1 : 0);
+                stocks.put(RedisConstants.SECKILL_STOCK_KEY + voucherId + ":" + i, String.valueOf(segmentStock));
+            }
+        }
+        stringRedisTemplate.opsForValue().multiSet(stocks);
+        // 元数据最后写入，脚本看到元数据时库存一定已经就绪
+        Map<String, String> meta = toMeta(seckillVoucher);
+        meta.put("segments", String.valueOf(segments));
+        String metaKey = RedisConstants.SECKILL_VOUCHER_KEY + voucherId;
+        stringRedisTemplate.opsForHash().putAll(metaKey, meta);
+        stringRedisTemplate.expireAt(metaKey, new Date(expireAtMillis(seckillVoucher)));
+    }
+
+    // 把redis中缺失的秒杀券元数据和库存补上，已经存在的不覆盖，所有写操作放在一个管道里
+    // 多个节点同时执行时只有拿到锁的节点执行，没有拿到锁时返回0
+    @Override
+    public int preloadSeckillVouchers() {
+        RLock lock = redissonClient.getLock(RedisConstants.LOCK_SECKILL_PRELOAD_KEY);
+        if (!lock.tryLock()) {
+            return 0;
+        }
+        try {
+            return preload();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int preload() {
+        List<SeckillVoucher> vouchers = query().gt("end_time", LocalDateTime.now()).list();
+        if (vouchers.isEmpty()) {
+            return 0;
+        }
+        // 先用一个管道查出各个券的段数，分段的券不能再补单key的库存
+        List<Object> segments = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (SeckillVoucher voucher : vouchers) {
+                conn.hGet(RedisConstants.SECKILL_VOUCHER_KEY + voucher.getVoucherId(), "segments");
+            }
+            return null;
+        });
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (int i = 0; i < vouchers.size(); i++) {
+                SeckillVoucher voucher = vouchers.get(i);
+                String metaKey = RedisConstants.SECKILL_VOUCHER_KEY + voucher.getVoucherId();
+                Map<String, String> meta = toMeta(voucher);
+                // 秒杀进行中redis的库存领先于数据库，只在缺失时补上；没有段数的券按不分段处理，不覆盖新增时确定的段数
+                if (segments.get(i) == null) {
+                    conn.setNX(RedisConstants.SECKILL_STOCK_KEY + voucher.getVoucherId(), String.valueOf(voucher.getStock()));
+                    meta.put("segments", "1");
+                }
+                // 元数据同样只补缺失的字段，修改秒杀时间时需要同时修改redis中的元数据
+                meta.forEach((field, value) -> conn.hSetNX(metaKey, field, value));
+                conn.pExpireAt(metaKey, expireAtMillis(voucher));
+            }
+            return null;
+        });
+        return vouchers.size();
+    }
+
+    private Map<String, String> toMeta(SeckillVoucher seckillVoucher) {
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("begin", String.valueOf(toMillis(seckillVoucher.getBeginTime())));
+        meta.put("end", String.valueOf(toMillis(seckillVoucher.getEndTime())));
+        return meta;
+    }
+
+    private long expireAtMillis(SeckillVoucher seckillVoucher) {
+        return toMillis(seckillVoucher.getEndTime()) + TimeUnit.SECONDS.toMillis(META_KEEP_SECONDS);
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
@@ -13,12 +13,17 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ShopBloomFilter;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -32,6 +37,7 @@ import java.util.concurrent.TimeUnit;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -41,6 +47,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @Resource
+    private ShopBloomFilter shopBloomFilter;
+
 
 
     @Override
@@ -64,6 +73,14 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
 
 
+    // 批量查询商铺，一次MGET，未命中的一次IN查询，结果和ids一一对应，不存在的是null
+    @Override
+    public List<Shop> queryShopByIds(List<Long> ids) {
+        return cacheClient.queryBatch(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class, RedisConstants.LOCK_SHOP_KEY,
+                this::listByIds, Shop::getId,
+                RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS);
+    }
+
     /**
      * 这种方法在视频里是完全没有问题的，1秒100并发，前几十个是旧数据，后面的是新数据
      * 但我测试的时候可能是请求发送的太快了，这些请求一下子都到了获取锁那里，
@@ -212,6 +229,20 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 //        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id,JSONUtil.toJsonStr(redisData));
 //    }
 
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        this.save(shop);
+        // 提交之后加入布隆过滤器，否则新商铺会被当作不存在的id拦截；
+        // 再写入逻辑过期的缓存，没有缓存的商铺会被当作不存在。两步分开执行，一步失败不影响另一步
+        afterCommit(() -> shopBloomFilter.add(shop.getId()));
+        afterCommit(() -> cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop,
+                RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS));
+        // 返回店铺id
+        return Result.ok(shop.getId());
+    }
+
     @Override
     @Transactional(rollbackFor = Exception.class)
     public Result updateShop(Shop shop) {
@@ -220,8 +251,25 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             return Result.fail("参数错误，id不能为空");
         }
         this.updateById(shop);
-        String shopKey = RedisConstants.CACHE_SHOP_KEY + id;
-        stringRedisTemplate.delete(shopKey);
+        Shop latest = this.getById(id);
+        // 逻辑过期的缓存不能直接删除，否则商铺会被当作不存在；用最新的数据覆盖，同时通知所有节点删除本地缓存
+        // 事务提交之后再写，回滚时缓存保持原样，其它节点收到通知后也一定能读到新数据
+        afterCommit(() -> cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, latest,
+                RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS));
         return Result.ok();
     }
+
+    // 当前事务提交之后执行，事务已经提交，执行失败只记录日志
+    private void afterCommit(Runnable action) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                try {
+                    action.run();
+                } catch (Exception e) {
+                    log.error("事务提交后更新商铺缓存或布隆过滤器失败", e);
+                }
+            }
+        });
+    }
 }
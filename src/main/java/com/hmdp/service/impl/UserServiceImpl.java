@@ -13,6 +13,7 @@ import com.hmdp.pojo.dto.UserDTO;
 import com.hmdp.pojo.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RegexUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.RedisTemplate;
@@ -22,7 +23,9 @@ import org.springframework.stereotype.Service;
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.common.RedisConstants.*;
@@ -39,6 +42,9 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheClient cacheClient;
+
     @Override
     public Result sendCode(String phone) {
         if (RegexUtils.isPhoneInvalid(phone)){
@@ -76,6 +82,8 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
             // 使用随机的字符串加上一个固定的前缀来作为默认昵称
             user.setNickName(SystemConstants.USER_NICK_NAME_PREFIX +RandomUtil.randomString(10));
             this.save(user);
+            // 删除查询这个id时可能留下的空值
+            cacheClient.delete(CACHE_USER_KEY + user.getId());
         }
         String token = UUID.randomUUID().toString(true);
         // 将用户信息脱敏后保存在redis
@@ -89,4 +97,24 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         stringRedisTemplate.expire(tokenKey,LOGIN_USER_TTL,TimeUnit.MINUTES);
         return Result.ok(token);
     }
+
+    // 批量查询用户的公开信息，结果和ids一一对应，不存在的是null
+    @Override
+    public List<UserDTO> queryUserByIds(List<Long> ids) {
+        return cacheClient.queryBatch(CACHE_USER_KEY, ids, UserDTO.class, LOCK_USER_KEY,
+                userIds -> listByIds(userIds).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toList()),
+                UserDTO::getId, CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
+    // 修改用户之后删除缓存的公开信息，并通知其它节点删除本地副本
+    @Override
+    public boolean updateById(User user) {
+        boolean updated = super.updateById(user);
+        if (updated) {
+            cacheClient.delete(CACHE_USER_KEY + user.getId());
+        }
+        return updated;
+    }
 }
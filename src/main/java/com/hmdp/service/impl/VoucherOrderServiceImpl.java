@@ -1,33 +1,72 @@
 package com.hmdp.service.impl;
 
 import com.hmdp.pojo.dto.Result;
-import com.hmdp.pojo.entity.SeckillVoucher;
 import com.hmdp.pojo.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.common.RedisConstants;
+import com.hmdp.config.SeckillProperties;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.collection.CollectionUtil;
+import com.hmdp.utils.HashedTimingWheel;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdGenerator;
+import com.hmdp.utils.SeckillOrderJournal;
+import com.hmdp.utils.SeckillOrderLane;
+import com.hmdp.utils.SeckillOrderMetrics;
+import com.hmdp.utils.SeckillOrderStatus;
+import com.hmdp.utils.SeckillSoldOutRegistry;
 import com.hmdp.utils.SimpleRedisLock;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -41,15 +80,30 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
+    // id生成器由 hmdp.id.generator 选择
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IdGenerator idGenerator;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private RedissonClient redissonClient;
+    @Resource
+    private SeckillProperties seckillProperties;
+    @Resource
+    private SeckillOrderMetrics seckillOrderMetrics;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+    @Resource
+    private SeckillOrderStatus seckillOrderStatus;
+    @Resource
+    private SeckillOrderJournal seckillOrderJournal;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
 
-    // 阻塞队列
-    BlockingQueue<VoucherOrder> queue = new ArrayBlockingQueue<>(1024*1024);
+    // 写库通道，订单按用户id分配到其中一个
+    private SeckillOrderLane[] lanes;
+    // 未支付订单的超时时间轮，未开启超时取消时为null
+    private HashedTimingWheel<VoucherOrder> payTimeoutWheel;
     // lua脚本
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
     static {
@@ -57,84 +111,515 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRIPT.setLocation(new ClassPathResource("lua/seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
     }
+    // 回滚秒杀脚本预扣的库存和下单记录
+    private static final DefaultRedisScript<Long> ROLLBACK_SCRIPT;
+    static {
+        ROLLBACK_SCRIPT = new DefaultRedisScript<>();
+        ROLLBACK_SCRIPT.setLocation(new ClassPathResource("lua/seckill_rollback.lua"));
+        ROLLBACK_SCRIPT.setResultType(Long.class);
+    }
+
+    // 秒杀券的id，支付超时只处理秒杀券的订单
+    private static final String SECKILL_VOUCHER_IDS = "SELECT voucher_id FROM tb_seckill_voucher";
+
+    //线程池，单线程的，stream模式下用来从消息队列读取订单并分发到写库通道
+    private static final ExecutorService SECKILL_STREAM_EXECUTOR = Executors.newSingleThreadExecutor();
 
-    //线程池，单线程的，用来异步调用修改数据库的操作
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    // stream模式下已经分发到通道、还未确认的消息，key为订单id
+    private final Map<Long, RecordId> inFlightRecords = new ConcurrentHashMap<>();
+    // 有订单写库失败，需要重新处理pending-list
+    private final AtomicBoolean pendingDirty = new AtomicBoolean();
+    // 非stream模式下写库失败、等待重新放回通道的订单 -> 已经失败的次数
+    private final Map<Long, Integer> retryAttempts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService laneRetryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-order-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     // 异步下单修改数据库的操作需要在项目启动的时候就开始进行，以便等待信息，因此使用注解在类加载后执行这个方法
     @PostConstruct
     private void init(){
-        // 调用线程池，提交异步下单的任务
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        SeckillProperties.Lane lane = seckillProperties.getLane();
+        lanes = new SeckillOrderLane[lane.getCount()];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new SeckillOrderLane(i, lane, seckillProperties.getBatch(), this::handleLaneOrders);
+            lanes[i].start();
+        }
+        seckillOrderMetrics.setLanes(() -> Arrays.stream(lanes).map(SeckillOrderLane::getMetrics).collect(Collectors.toList()));
+        SeckillProperties.PayTimeout payTimeout = seckillProperties.getPayTimeout();
+        if (payTimeout.isEnabled()) {
+            payTimeoutWheel = new HashedTimingWheel<>("seckill-pay-timeout", payTimeout.getTickMs(), payTimeout.getWheelSize(),
+                    payTimeout.getBatchSize(), payTimeout.getRetryDelayMs(), this::handleExpiredOrders);
+            payTimeoutWheel.start();
+            seckillOrderMetrics.setPayTimeoutPending(payTimeoutWheel::getPending);
+        }
+        // 开启stream队列时，订单由lua脚本写入redis的消息队列，否则由请求线程直接放进通道的本地队列
+        if (seckillProperties.getStream().isEnabled()) {
+            seckillOrderMetrics.setBacklog(this::streamBacklog);
+            SECKILL_STREAM_EXECUTOR.submit(new VoucherOrderStreamHandler());
+            return;
+        }
+        seckillOrderMetrics.setBacklog(() -> Arrays.stream(lanes).mapToLong(SeckillOrderLane::size).sum());
+        if (seckillProperties.getJournal().isEnabled()) {
+            // 把上次退出时还没写库的订单重新交给写库通道
+            try {
+                for (VoucherOrder voucherOrder : seckillOrderJournal.open()) {
+                    laneOf(voucherOrder.getUserId()).put(voucherOrder);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        SECKILL_STREAM_EXECUTOR.shutdownNow();
+        laneRetryExecutor.shutdownNow();
+        if (payTimeoutWheel != null) {
+            payTimeoutWheel.stop();
+        }
+        for (SeckillOrderLane lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    private SeckillOrderLane laneOf(Long userId) {
+        return lanes[SeckillOrderLane.laneOf(userId, lanes.length)];
+    }
+
+    // 通道线程处理一批订单，stream模式下确认写库成功的消息
+    private void handleLaneOrders(List<VoucherOrder> voucherOrders) {
+        List<VoucherOrder> failed = seckillProperties.getBatch().isEnabled()
+                ? handleVoucherOrders(voucherOrders)
+                : handleEach(voucherOrders);
+        if (!seckillProperties.getStream().isEnabled()) {
+            // 写库失败的订单稍后重新放回通道，提交之后才推进检查点
+            List<VoucherOrder> done = new ArrayList<>(voucherOrders);
+            done.removeAll(failed);
+            if (seckillOrderJournal.isOpened()) {
+                seckillOrderJournal.complete(done);
+            }
+            if (!retryAttempts.isEmpty()) {
+                done.forEach(voucherOrder -> retryAttempts.remove(voucherOrder.getId()));
+            }
+            failed.forEach(this::retryLater);
+            return;
+        }
+        if (!failed.isEmpty()) {
+            // 失败的消息留在pending-list里，由读取线程稍后重新分发
+            pendingDirty.set(true);
+            for (VoucherOrder voucherOrder : failed) {
+                inFlightRecords.remove(voucherOrder.getId());
+            }
+        }
+        List<RecordId> recordIds = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            RecordId recordId = inFlightRecords.remove(voucherOrder.getId());
+            if (recordId != null) {
+                recordIds.add(recordId);
+            }
+        }
+        if (!recordIds.isEmpty()) {
+            SeckillProperties.Stream stream = seckillProperties.getStream();
+            // XACK stream.orders g1 id...
+            stringRedisTemplate.opsForStream().acknowledge(stream.getKey(), stream.getGroup(), recordIds.toArray(new RecordId[0]));
+            seckillOrderMetrics.recordAcked(recordIds.size());
+        }
+    }
+
+    // 等待一段时间后把写库失败的订单放回它的通道，连续失败时等待时间加倍
+    private void retryLater(VoucherOrder voucherOrder) {
+        SeckillProperties.Lane lane = seckillProperties.getLane();
+        int attempt = retryAttempts.merge(voucherOrder.getId(), 1, Integer::sum);
+        long delay = Math.min(lane.getMaxRetryDelayMs(), lane.getRetryDelayMs() << Math.min(attempt - 1, 20));
+        laneRetryExecutor.schedule(() -> {
+            try {
+                // 通道满时在重试线程里等待，不占用通道线程
+                laneOf(voucherOrder.getUserId()).put(voucherOrder);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
     }
 
-    // 异步下单的任务
-    class VoucherOrderHandler implements Runnable{
+    // 基于redis stream消费组读取订单，分发到各个写库通道，通道写库提交之后才确认消息
+    class VoucherOrderStreamHandler implements Runnable{
         @Override
         public void run() {
-            while (true){
+            SeckillProperties.Stream stream = seckillProperties.getStream();
+            // 启动时先接管其它已经挂掉的消费者长时间未确认的消息，再把自己名下未确认的消息重新处理一遍
+            initStream();
+            dispatchPendingList();
+            long lastPendingTime = System.currentTimeMillis();
+            while (!Thread.currentThread().isInterrupted()){
                 try {
-                    // 从阻塞队列中取出数据，如果没有，线程会一直阻塞在这里
-                    VoucherOrder voucherOrder = queue.take();
-                    // 取出数据后执行具体的操作
-                    handleVoucherOrder(voucherOrder);
+                    // XREADGROUP GROUP g1 c1 COUNT size BLOCK ms STREAMS stream.orders >
+                    List<MapRecord<String, Object, Object>> records = readGroup(
+                            StreamReadOptions.empty().count(seckillProperties.getBatch().getSize())
+                                    .block(Duration.ofMillis(stream.getBlockMs())),
+                            ReadOffset.lastConsumed());
+                    if (CollectionUtil.isNotEmpty(records)) {
+                        dispatch(records);
+                    }
+                    // 有写库失败的订单时，间隔一段时间重新分发pending-list，避免失败时空转
+                    if (System.currentTimeMillis() - lastPendingTime >= stream.getRetryIntervalMs()
+                            && pendingDirty.compareAndSet(true, false)) {
+                        dispatchPendingList();
+                        lastPendingTime = System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 } catch (Exception e) {
-                    log.info("处理订单异常",e);
+                    log.error("处理订单异常", e);
+                    sleepQuietly(stream.getRetryIntervalMs());
                 }
             }
         }
+
+        // 分页读取自己名下已读取但是还未确认的消息，重新分发其中不在通道里的那些
+        private void dispatchPendingList() {
+            SeckillProperties.Stream stream = seckillProperties.getStream();
+            String offset = "0";
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    // XREADGROUP GROUP g1 c1 COUNT size STREAMS stream.orders offset
+                    List<MapRecord<String, Object, Object>> records = readGroup(
+                            StreamReadOptions.empty().count(seckillProperties.getBatch().getSize()),
+                            ReadOffset.from(offset));
+                    if (CollectionUtil.isEmpty(records)) {
+                        return;
+                    }
+                    seckillOrderMetrics.recordPendingRetried(dispatch(records));
+                    offset = records.get(records.size() - 1).getId().getValue();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常", e);
+                    pendingDirty.set(true);
+                    return;
+                }
+            }
+        }
+
+        // 以本节点的消费者读取订单stream，只有一个offset，varargs生成的泛型数组是安全的
+        @SuppressWarnings("unchecked")
+        private List<MapRecord<String, Object, Object>> readGroup(StreamReadOptions options, ReadOffset readOffset) {
+            SeckillProperties.Stream stream = seckillProperties.getStream();
+            return stringRedisTemplate.opsForStream().read(Consumer.from(stream.getGroup(), stream.getConsumer()),
+                    options, StreamOffset.create(stream.getKey(), readOffset));
+        }
+
+        // 将消息转换为订单，按用户分发到写库通道，通道满了就阻塞，自然地对读取形成背压；返回实际分发的数量
+        private int dispatch(List<MapRecord<String, Object, Object>> records) throws InterruptedException {
+            int dispatched = 0;
+            for (MapRecord<String, Object, Object> record : records) {
+                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+                // 已经在通道里的消息不重复分发
+                if (inFlightRecords.putIfAbsent(voucherOrder.getId(), record.getId()) != null) {
+                    continue;
+                }
+                laneOf(voucherOrder.getUserId()).put(voucherOrder);
+                dispatched++;
+            }
+            return dispatched;
+        }
     }
-    // 异步下单的具体操作
-    public void handleVoucherOrder(VoucherOrder voucherOrder){
-        Long userId = voucherOrder.getUserId();
-        // 使用Redisson的分布式锁
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        // 获取锁
-        boolean tryLock = lock.tryLock();
-        if (!tryLock){
-            log.info("不允许重复下单");
+
+    // 创建消费组，同时用MKSTREAM保证stream不存在时也能创建；接管其它消费者超时未确认的消息
+    private void initStream() {
+        SeckillProperties.Stream stream = seckillProperties.getStream();
+        byte[] key = stream.getKey().getBytes(StandardCharsets.UTF_8);
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                    connection.streamCommands().xGroupCreate(key, stream.getGroup(), ReadOffset.from("0"), true));
+        } catch (RedisSystemException e) {
+            // BUSYGROUP，消费组已经存在
+            log.debug("消费组已存在: {}", stream.getGroup());
+        }
+        try {
+            PendingMessages pendingMessages = stringRedisTemplate.opsForStream()
+                    .pending(stream.getKey(), stream.getGroup(), Range.unbounded(), stream.getClaimCount());
+            List<RecordId> claimIds = new ArrayList<>();
+            for (PendingMessage pendingMessage : pendingMessages) {
+                if (!stream.getConsumer().equals(pendingMessage.getConsumerName())
+                        && pendingMessage.getElapsedTimeSinceLastDelivery().toMillis() >= stream.getClaimIdleMs()) {
+                    claimIds.add(pendingMessage.getId());
+                }
+            }
+            if (claimIds.isEmpty()) {
+                return;
+            }
+            // XCLAIM stream.orders g1 c1 min-idle-time id... JUSTID，只转移所有权，随后当作自己的pending消息处理
+            stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection ->
+                    connection.streamCommands().xClaimJustId(key, stream.getGroup(), stream.getConsumer(),
+                            RedisStreamCommands.XClaimOptions.minIdle(Duration.ofMillis(stream.getClaimIdleMs()))
+                                    .ids(claimIds.toArray(new RecordId[0]))));
+            seckillOrderMetrics.recordClaimed(claimIds.size());
+            log.info("接管了{}条其它消费者未确认的订单消息", claimIds.size());
+        } catch (Exception e) {
+            log.error("接管未确认的订单消息异常", e);
+        }
+    }
+
+    // stream模式下的积压量，即消费组里已投递但还未确认的消息数
+    private long streamBacklog() {
+        SeckillProperties.Stream stream = seckillProperties.getStream();
+        try {
+            return stringRedisTemplate.opsForStream().pending(stream.getKey(), stream.getGroup()).getTotalPendingMessages();
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 批量下单的具体操作，一批订单在一个事务里写库，返回写库失败的订单
+    // 一人一单已经由lua脚本保证，事务里还会再按数据库校验一次，因此这里不再逐个用户加分布式锁
+    public List<VoucherOrder> handleVoucherOrders(List<VoucherOrder> voucherOrders){
+        long begin = System.nanoTime();
+        try {
+            List<VoucherOrder> saved = proxy.creatVoucherOrders(voucherOrders);
+            seckillOrderMetrics.recordBatch(voucherOrders.size(), System.nanoTime() - begin);
+            // 事务已经提交，更新订单状态
+            afterPersisted(voucherOrders, saved);
+            return Collections.emptyList();
+        } catch (BatchConflictException e) {
+            // 重复订单和库存不足在秒杀脚本之后很少出现，逐条处理即可区分
+            log.warn("批量写入订单冲突，退化为逐条处理：{}", e.getMessage());
+            seckillOrderMetrics.recordFallback();
+            return handleEach(voucherOrders);
+        } catch (Exception e) {
+            // 整批失败时事务已经回滚，退化为逐条处理，避免一个坏订单拖垮整批
+            log.error("批量写入订单异常，退化为逐条处理", e);
+            seckillOrderMetrics.recordFallback();
+            return handleEach(voucherOrders);
+        }
+    }
+
+    // 逐条处理订单，返回写库失败的订单；同一个用户的订单只在一个通道里顺序处理，不需要再加分布式锁
+    private List<VoucherOrder> handleEach(List<VoucherOrder> voucherOrders) {
+        List<VoucherOrder> failed = new ArrayList<>();
+        List<VoucherOrder> processed = new ArrayList<>(voucherOrders.size());
+        List<VoucherOrder> saved = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            try {
+                if (proxy.creatVoucherOrder(voucherOrder)) {
+                    saved.add(voucherOrder);
+                }
+                processed.add(voucherOrder);
+            } catch (Exception ex) {
+                log.error("处理订单异常", ex);
+                failed.add(voucherOrder);
+            }
+        }
+        // 写库异常的订单稍后还会重试，不更新状态
+        afterPersisted(processed, saved);
+        return failed;
+    }
+
+    // 订单写库提交之后更新订单状态，保存成功的订单开始计算支付超时
+    private void afterPersisted(List<VoucherOrder> processed, List<VoucherOrder> saved) {
+        seckillOrderStatus.markResult(processed, saved);
+        if (payTimeoutWheel != null && !saved.isEmpty()) {
+            long deadline = System.currentTimeMillis()
+                    + TimeUnit.SECONDS.toMillis(seckillProperties.getPayTimeout().getTimeoutSeconds());
+            for (VoucherOrder voucherOrder : saved) {
+                payTimeoutWheel.schedule(voucherOrder, deadline);
+            }
+        }
+    }
+
+    // 项目启动完成后，从数据库加载秒杀券的未支付订单重建时间轮，按下单时间计算到期时间，已经超时的立即到期
+    // 已经取消、redis库存还没有归还的订单也立即到期，继续归还
+    // 普通券的订单不经过秒杀脚本，没有redis中的库存和下单记录，不在这里取消
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildPayTimeouts() {
+        if (payTimeoutWheel == null) {
+            return;
+        }
+        SeckillProperties.PayTimeout payTimeout = seckillProperties.getPayTimeout();
+        long timeoutMs = TimeUnit.SECONDS.toMillis(payTimeout.getTimeoutSeconds());
+        long lastId = 0;
+        int total = 0;
+        while (true) {
+            // 按主键分页，避免深分页
+            List<VoucherOrder> page = query().select("id", "user_id", "voucher_id", "status", "create_time")
+                    .in("status", 1, 7).inSql("voucher_id", SECKILL_VOUCHER_IDS).gt("id", lastId).orderByAsc("id")
+                    .last("LIMIT " + payTimeout.getRebuildPageSize()).list();
+            for (VoucherOrder voucherOrder : page) {
+                if (voucherOrder.getStatus() == 7) {
+                    payTimeoutWheel.schedule(voucherOrder, System.currentTimeMillis());
+                    continue;
+                }
+                long createTime = voucherOrder.getCreateTime() == null ? System.currentTimeMillis()
+                        : voucherOrder.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                payTimeoutWheel.schedule(voucherOrder, createTime + timeoutMs);
+            }
+            total += page.size();
+            if (page.size() < payTimeout.getRebuildPageSize()) {
+                break;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+        log.info("从数据库加载{}个未支付订单到超时时间轮", total);
+    }
+
+    // 时间轮线程处理一批到期的订单：数据库中取消订单并归还库存，再归还redis中的库存和下单资格
+    // 数据库中先改为“已取消、redis库存待归还”，redis归还之后才改为已取消，重启后按状态继续归还
+    private void handleExpiredOrders(List<VoucherOrder> expired) {
+        // 抛出异常时整批稍后重试
+        List<VoucherOrder> cancelled = proxy.cancelUnpaidOrders(expired);
+        seckillOrderMetrics.recordCancelled((int) cancelled.stream().filter(voucherOrder -> voucherOrder.getStatus() == 1).count());
+        if (cancelled.isEmpty()) {
             return;
         }
-        // 获取成功执行修改数据库的操作
         try {
-            proxy.creatVoucherOrder(voucherOrder);
-        } finally {
-            // 最终释放锁
-            lock.unlock();
+            String script = ROLLBACK_SCRIPT.getScriptAsString();
+            String cancelledStatus = String.valueOf(SeckillOrderStatus.CANCELLED);
+            String statusTtl = String.valueOf(seckillProperties.getStatus().getTtlSeconds());
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (VoucherOrder voucherOrder : cancelled) {
+                    conn.eval(script, ReturnType.INTEGER, 0, voucherOrder.getVoucherId().toString(),
+                            voucherOrder.getUserId().toString(), voucherOrder.getId().toString(), cancelledStatus, statusTtl);
+                }
+                return null;
+            });
+            update().set("status", 4)
+                    .in("id", cancelled.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                    .eq("status", 7)
+                    .update();
+            seckillOrderStatus.markCancelled(cancelled);
+        } catch (Exception e) {
+            // 数据库中仍是待归还状态，重新放回时间轮重试；回滚脚本按下单记录判断，重复执行不会多还
+            log.error("超时订单已取消，但归还redis库存失败，稍后重试，订单：{}",
+                    cancelled.stream().map(VoucherOrder::getId).collect(Collectors.toList()), e);
+            long retryAt = System.currentTimeMillis() + seckillProperties.getPayTimeout().getRetryDelayMs();
+            for (VoucherOrder voucherOrder : cancelled) {
+                payTimeoutWheel.schedule(voucherOrder, retryAt);
+            }
+            return;
         }
+        // 库存回来了，清除本地的售罄标记
+        cancelled.stream().map(VoucherOrder::getVoucherId).distinct().forEach(seckillSoldOutRegistry::reset);
     }
-    // 将代理对象放到局部变量的位置，便于主线程之外的线程使用
+
+    // 取消仍未支付的秒杀券订单，把库存加回秒杀券表，订单改为“已取消、redis库存待归还”
+    // 返回需要归还redis库存的订单：这次取消的，以及之前已经取消、还没有归还的
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<VoucherOrder> voucherOrders) {
+        List<Long> ids = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        // 加锁读取，避免和支付同时修改
+        List<VoucherOrder> cancelled = query().select("id", "user_id", "voucher_id", "status")
+                .in("id", ids).in("status", 1, 7).inSql("voucher_id", SECKILL_VOUCHER_IDS).last("FOR UPDATE").list();
+        List<VoucherOrder> unpaid = cancelled.stream().filter(voucherOrder -> voucherOrder.getStatus() == 1)
+                .collect(Collectors.toList());
+        if (unpaid.isEmpty()) {
+            return cancelled;
+        }
+        update().set("status", 7)
+                .in("id", unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .update();
+        Map<Long, Long> countByVoucher = unpaid.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.counting()));
+        for (Map.Entry<Long, Long> entry : countByVoucher.entrySet()) {
+            seckillVoucherService.update().setSql("stock = stock + " + entry.getValue())
+                    .eq("voucher_id", entry.getKey()).update();
+        }
+        return cancelled;
+    }
+
+    // 注入自己的代理对象，便于主线程之外的线程使用事务；stream模式启动时就要处理pending-list，不能等到第一个请求才赋值
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 库存由lua脚本扣减，不能放进近端缓存，这里只统计热点，在 /metrics/hot-key 中查看
+        hotKeyDetector.record(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+        // 本地已经知道售罄了，直接返回，不再访问redis
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         Long userId = UserHolder.getUser().getId();
+        // stream模式下订单由lua脚本写入消息队列，因此要先生成订单id；必须在扣减库存之前，生成失败时库存没有变化
+        Long orderId;
+        try {
+            orderId = idGenerator.nextId("order");
+        } catch (IllegalStateException e) {
+            log.warn("生成订单id失败，voucherId: {}", voucherId, e);
+            return Result.fail("系统繁忙，请稍后再试");
+        }
+        SeckillProperties.Stream stream = seckillProperties.getStream();
+        String streamKey = stream.isEnabled() ? stream.getKey() : "";
         // 执行脚本
-        Long executeResult = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(), voucherId, userId);
+        Long executeResult = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(),
+                voucherId.toString(), userId.toString(), orderId.toString(), streamKey,
+                String.valueOf(System.currentTimeMillis()), String.valueOf(seckillProperties.getStatus().getTtlSeconds()));
         // 将返回值转为int类型
         int intValue = executeResult.intValue();
         // 返回值为1的情况
         if (intValue == 1){
+            seckillSoldOutRegistry.markSoldOut(voucherId);
             return Result.fail("库存不足");
         }
         // 返回值为2的情况
         if (intValue == 2){
             return Result.fail("一人只能下一单");
         }
-        // lua脚本返回0，表示可以抢购订单了
+        if (intValue == 3){
+            return Result.fail("秒杀还未开始");
+        }
+        if (intValue == 4){
+            return Result.fail("秒杀已经结束");
+        }
+        if (intValue == 5){
+            return Result.fail("优惠券不存在");
+        }
+        // lua脚本返回0，表示可以抢购订单了；stream模式下订单已经在脚本中入队
+        if (stream.isEnabled()) {
+            return Result.ok(orderId);
+        }
         // 创建订单信息，并保存到阻塞队列中
         VoucherOrder voucherOrder = new VoucherOrder();
-        Long orderId = redisIdWorker.nextId("order");
         voucherOrder.setId(orderId);
         voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
-        queue.add(voucherOrder);
-        // 在当前的主线程给代理对象赋值，因为在新开的线程中要使用
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        // 先写预写日志再交给写库通道，JVM崩溃时重启可以从日志恢复
+        boolean journaled = seckillOrderJournal.isOpened();
+        if (journaled) {
+            seckillOrderJournal.append(voucherOrder);
+        }
+        if (!laneOf(userId).offer(voucherOrder)) {
+            // 写库通道已满，订单没有被接收，把redis里预扣的库存和下单记录还回去
+            if (journaled) {
+                seckillOrderJournal.cancel(voucherOrder);
+            }
+            stringRedisTemplate.execute(ROLLBACK_SCRIPT, Collections.emptyList(),
+                    voucherId.toString(), userId.toString(), orderId.toString(),
+                    String.valueOf(SeckillOrderStatus.FAILED), String.valueOf(seckillProperties.getStatus().getTtlSeconds()));
+            return Result.fail("系统繁忙，请稍后再试");
+        }
         // 返回给用户响应
         return Result.ok(orderId);
     }
 
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, Long waitMs) {
+        Long userId = UserHolder.getUser().getId();
+        return seckillOrderStatus.await(orderId, userId, waitMs);
+    }
+
 //    @Override
 //    public Result seckillVoucher(Long voucherId) {
 //        // 1.查询优惠券信息
@@ -181,51 +666,102 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     // 同步情况下需要调用的修改数据库的操作
     @Transactional
     public Result creatVoucherOrder(Long voucherId){
-        // 一人一单
         Long userId = UserHolder.getUser().getId();
-        // 根据用户id和商品id从数据库查询
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherId).count();
-        if (count > 0){
-            return Result.fail("您已经下过单了");
-        }
-        // 4.更新库存，使用了优化的乐观锁，即在修改数据时判断数据是否满足要求（大于0）
-        boolean updateResult = seckillVoucherService.update().setSql("stock = stock - 1")
-                .eq("voucher_id", voucherId).gt("stock",0)
-                .update();
-        if (!updateResult){
-            return Result.fail("库存不足");
-        }
         // 5.生成订单
         VoucherOrder voucherOrder = new VoucherOrder();
-        Long orderId = redisIdWorker.nextId("order");
+        Long orderId = idGenerator.nextId("order");
         voucherOrder.setId(orderId);
         voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
-        // 6.将订单保存在数据库中
-        this.save(voucherOrder);
+        // 一人一单，由唯一索引保证，已经下过单时插入被忽略
+        if (getBaseMapper().insertIgnore(voucherOrder) == 0){
+            return Result.fail("您已经下过单了");
+        }
+        // 4.更新库存，使用了优化的乐观锁，即在修改数据时判断数据是否满足要求（大于0）
+        if (!decreaseStock(voucherId, 1)){
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return Result.fail("库存不足");
+        }
         return Result.ok(orderId);
     }
 
-    // 异步下单需要调用的保存数据库的方法
+    // 异步下单需要调用的保存数据库的方法，返回订单是否保存成功
     @Transactional
-    public void creatVoucherOrder(VoucherOrder voucherOrder){
-        // 一人一单
-        Long userId = voucherOrder.getUserId();
-        // 根据用户id和商品id从数据库查询
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        if (count > 0){
-            log.error("您已经下过单了");
-            return;
+    public boolean creatVoucherOrder(VoucherOrder voucherOrder){
+        // 一人一单由 (user_id, voucher_id) 唯一索引保证，重复的订单插入时被忽略，不再需要先查询
+        if (getBaseMapper().insertIgnore(voucherOrder) == 0){
+            // stream在提交之后、确认之前重新投递，或者日志检查点落后时重放，这个订单本身已经保存过了
+            if (query().eq("id", voucherOrder.getId()).count() > 0) {
+                return true;
+            }
+            // 之前的订单超时未支付被取消了，lua脚本已经允许重新下单，用新订单替换取消的那一行
+            if (!replaceCancelled(voucherOrder)) {
+                log.error("您已经下过单了");
+                seckillOrderMetrics.recordDropped(1);
+                return false;
+            }
         }
         // 4.更新库存，使用了优化的乐观锁，即在修改数据时判断数据是否满足要求（大于0）
-        boolean updateResult = seckillVoucherService.update().setSql("stock = stock - 1")
-                .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock",0)
-                .update();
-        if (!updateResult){
+        if (!decreaseStock(voucherOrder.getVoucherId(), 1)){
             log.error("库存不足");
-            return;
+            seckillOrderMetrics.recordDropped(1);
+            // 回滚已经插入的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
+        }
+        return true;
+    }
+
+    // 异步下单批量保存数据库的方法，一条语句插入整批订单、每张券只扣一次库存，返回保存成功的订单
+    // 批内有数据库中已存在的重复订单、或者库存不够整批扣减时抛出异常回滚，由调用方退化为逐条处理
+    @Transactional
+    public List<VoucherOrder> creatVoucherOrders(List<VoucherOrder> voucherOrders){
+        // 同一批内同一个用户对同一张券的重复订单先去掉
+        Map<String, VoucherOrder> unique = new LinkedHashMap<>(voucherOrders.size() * 2);
+        for (VoucherOrder order : voucherOrders) {
+            unique.putIfAbsent(order.getUserId() + ":" + order.getVoucherId(), order);
+        }
+        List<VoucherOrder> toSave = new ArrayList<>(unique.values());
+        if (toSave.size() < voucherOrders.size()) {
+            log.error("您已经下过单了，丢弃{}个重复订单", voucherOrders.size() - toSave.size());
+            seckillOrderMetrics.recordDropped(voucherOrders.size() - toSave.size());
+        }
+        // 6.多行插入，一条语句保存整批订单，重复的订单由唯一索引忽略
+        // 被忽略的可能是已经保存过的同一个订单（重新投递或重放），也可能是用户的另一个订单，逐条处理时再区分
+        int inserted = getBaseMapper().insertBatchIgnore(toSave);
+        if (inserted < toSave.size()) {
+            throw new BatchConflictException("批内有" + (toSave.size() - inserted) + "个已存在的订单");
+        }
+        // 4.按优惠券分组，一次扣减这张券这一批的库存，同样使用乐观锁保证库存够扣
+        Map<Long, Long> countByVoucher = toSave.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.counting()));
+        for (Map.Entry<Long, Long> entry : countByVoucher.entrySet()) {
+            if (!decreaseStock(entry.getKey(), entry.getValue().intValue())) {
+                throw new BatchConflictException("优惠券" + entry.getKey() + "库存不足以扣减" + entry.getValue() + "个订单");
+            }
+        }
+        return toSave;
+    }
+
+    // 删除这个用户这张券已取消的订单，再插入新订单，唯一索引不再被取消的订单占用
+    // lua脚本允许重新下单说明redis已经归还，待归还状态的订单也可以删除
+    private boolean replaceCancelled(VoucherOrder voucherOrder) {
+        return update().eq("user_id", voucherOrder.getUserId()).eq("voucher_id", voucherOrder.getVoucherId())
+                .in("status", 4, 7).remove()
+                && getBaseMapper().insertIgnore(voucherOrder) == 1;
+    }
+
+    // 扣减库存，库存不够时不扣减
+    private boolean decreaseStock(Long voucherId, int count) {
+        return seckillVoucherService.update().setSql("stock = stock - " + count)
+                .eq("voucher_id", voucherId).ge("stock", count)
+                .update();
+    }
+
+    // 整批写入时遇到重复订单或者库存不足，需要逐条处理才能确定是哪些订单
+    static class BatchConflictException extends RuntimeException {
+        BatchConflictException(String message) {
+            super(message);
         }
-        // 6.将订单保存在数据库中
-        this.save(voucherOrder);
     }
 }
@@ -8,6 +8,7 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.pojo.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillSoldOutRegistry;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -30,6 +31,8 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
 
 
 
@@ -53,6 +56,9 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        // 库存和秒杀的开始结束时间写入redis，秒杀脚本只依赖redis完成全部校验
+        seckillVoucherService.saveSeckillVoucherToRedis(seckillVoucher);
+        // 库存写入redis之后清除各个节点的售罄标记
+        seckillSoldOutRegistry.reset(voucher.getId());
     }
 }
@@ -0,0 +1,379 @@
+package com.hmdp.utils;
+
+import com.hmdp.pojo.dto.UserDTO;
+import com.hmdp.pojo.entity.Shop;
+import com.hmdp.pojo.entity.ShopType;
+import com.hmdp.pojo.entity.Voucher;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 紧凑的二进制格式，按注册的字段顺序直接读写，不保存字段名
+ * 格式：魔数(1) 类型编号(1) 过期时间(8) 非空字段位图(varint) 各个非空字段
+ * 整数用zigzag变长编码，时间按UTC的毫秒数保存，字符串是长度加UTF-8字节
+ * 过期时间在固定位置，不解码数据就能读取。没有注册的类型和不是这个格式的数据交给json编解码器处理
+ * 新增字段只能加在末尾，已有的字段不能删除或者调整顺序，否则要换一个类型编号
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    // json的第一个字节只能是 { [ " 或者数字字母，不会和魔数冲突
+    private static final byte MAGIC = (byte) 0xC5;
+    private static final int HEADER_BYTES = 10;
+
+    private final CacheCodec fallback = new JsonCacheCodec();
+    private final Map<Class<?>, Schema<?>> schemasByType = new ConcurrentHashMap<>();
+    private final Schema<?>[] schemasById = new Schema<?>[256];
+
+    private static final ThreadLocal<Writer> WRITERS = ThreadLocal.withInitial(Writer::new);
+
+    public BinaryCacheCodec() {
+        register(1, new Schema<>(Shop.class, Shop::new)
+                .field(Kind.LONG, Shop::getId, Shop::setId)
+                .field(Kind.STRING, Shop::getName, Shop::setName)
+                .field(Kind.LONG, Shop::getTypeId, Shop::setTypeId)
+                .field(Kind.STRING, Shop::getImages, Shop::setImages)
+                .field(Kind.STRING, Shop::getArea, Shop::setArea)
+                .field(Kind.STRING, Shop::getAddress, Shop::setAddress)
+                .field(Kind.DOUBLE, Shop::getX, Shop::setX)
+                .field(Kind.DOUBLE, Shop::getY, Shop::setY)
+                .field(Kind.LONG, Shop::getAvgPrice, Shop::setAvgPrice)
+                .field(Kind.INT, Shop::getSold, Shop::setSold)
+                .field(Kind.INT, Shop::getComments, Shop::setComments)
+                .field(Kind.INT, Shop::getScore, Shop::setScore)
+                .field(Kind.STRING, Shop::getOpenHours, Shop::setOpenHours)
+                .field(Kind.TIME, Shop::getCreateTime, Shop::setCreateTime)
+                .field(Kind.TIME, Shop::getUpdateTime, Shop::setUpdateTime)
+                .field(Kind.DOUBLE, Shop::getDistance, Shop::setDistance));
+        register(2, new Schema<>(ShopType.class, ShopType::new)
+                .field(Kind.LONG, ShopType::getId, ShopType::setId)
+                .field(Kind.STRING, ShopType::getName, ShopType::setName)
+                .field(Kind.STRING, ShopType::getIcon, ShopType::setIcon)
+                .field(Kind.INT, ShopType::getSort, ShopType::setSort)
+                .field(Kind.TIME, ShopType::getCreateTime, ShopType::setCreateTime)
+                .field(Kind.TIME, ShopType::getUpdateTime, ShopType::setUpdateTime));
+        register(3, new Schema<>(Voucher.class, Voucher::new)
+                .field(Kind.LONG, Voucher::getId, Voucher::setId)
+                .field(Kind.LONG, Voucher::getShopId, Voucher::setShopId)
+                .field(Kind.STRING, Voucher::getTitle, Voucher::setTitle)
+                .field(Kind.STRING, Voucher::getSubTitle, Voucher::setSubTitle)
+                .field(Kind.STRING, Voucher::getRules, Voucher::setRules)
+                .field(Kind.LONG, Voucher::getPayValue, Voucher::setPayValue)
+                .field(Kind.LONG, Voucher::getActualValue, Voucher::setActualValue)
+                .field(Kind.INT, Voucher::getType, Voucher::setType)
+                .field(Kind.INT, Voucher::getStatus, Voucher::setStatus)
+                .field(Kind.INT, Voucher::getStock, Voucher::setStock)
+                .field(Kind.TIME, Voucher::getBeginTime, Voucher::setBeginTime)
+                .field(Kind.TIME, Voucher::getEndTime, Voucher::setEndTime)
+                .field(Kind.TIME, Voucher::getCreateTime, Voucher::setCreateTime)
+                .field(Kind.TIME, Voucher::getUpdateTime, Voucher::setUpdateTime));
+        register(4, new Schema<>(UserDTO.class, UserDTO::new)
+                .field(Kind.LONG, UserDTO::getId, UserDTO::setId)
+                .field(Kind.STRING, UserDTO::getNickName, UserDTO::setNickName)
+                .field(Kind.STRING, UserDTO::getIcon, UserDTO::setIcon));
+    }
+
+    // 注册一个类型，类型编号一旦使用就不能再分配给别的类型
+    public <T> void register(int typeId, Schema<T> schema) {
+        if (typeId <= 0 || typeId > 255 || schemasById[typeId] != null) {
+            throw new IllegalArgumentException("类型编号不可用: " + typeId);
+        }
+        schema.typeId = typeId;
+        schemasById[typeId] = schema;
+        schemasByType.put(schema.type, schema);
+    }
+
+    public static boolean isBinary(byte[] bytes) {
+        return bytes != null && bytes.length >= HEADER_BYTES && bytes[0] == MAGIC;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return encode(value, NO_EXPIRE);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public byte[] encode(Object value, long expireAt) {
+        Schema<Object> schema = value == null ? null : (Schema<Object>) schemasByType.get(value.getClass());
+        if (schema == null) {
+            return expireAt == NO_EXPIRE ? fallback.encode(value) : fallback.encode(value, expireAt);
+        }
+        Writer writer = WRITERS.get();
+        writer.reset();
+        writer.writeByte(MAGIC);
+        writer.writeByte((byte) schema.typeId);
+        writer.writeFixedLong(expireAt);
+        schema.write(writer, value);
+        return writer.toBytes();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        return isBinary(bytes) ? read(bytes, type) : fallback.decode(bytes, type);
+    }
+
+    @Override
+    public long readExpireAt(byte[] bytes) {
+        if (!isBinary(bytes)) {
+            return fallback.readExpireAt(bytes);
+        }
+        long value = 0;
+        for (int i = 2; i < HEADER_BYTES; i++) {
+            value = value << 8 | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    @Override
+    public <R> R decodeData(byte[] bytes, Class<R> type) {
+        return isBinary(bytes) ? read(bytes, type) : fallback.decodeData(bytes, type);
+    }
+
+    private <R> R read(byte[] bytes, Class<R> type) {
+        Schema<?> schema = schemasById[bytes[1] & 0xFF];
+        if (schema == null || schema.type != type) {
+            throw new IllegalStateException("缓存数据的类型和 " + type.getName() + " 不一致");
+        }
+        Reader reader = new Reader(bytes, HEADER_BYTES);
+        try {
+            return type.cast(schema.read(reader));
+        } catch (IndexOutOfBoundsException e) {
+            // 数据被截断时读取会越界，和类型不一致一样按格式错误处理
+            throw new IllegalStateException("缓存数据不完整，类型 " + type.getName(), e);
+        }
+    }
+
+    /**
+     * 一个类型的字段列表，字段按添加的顺序编码
+     */
+    public static class Schema<T> {
+        private final Class<T> type;
+        private final Supplier<T> factory;
+        private final List<Field<T, Object>> fields = new ArrayList<>();
+        private int typeId;
+
+        public Schema(Class<T> type, Supplier<T> factory) {
+            this.type = type;
+            this.factory = factory;
+        }
+
+        @SuppressWarnings("unchecked")
+        public <V> Schema<T> field(Kind<V> kind, Function<T, V> getter, BiConsumer<T, V> setter) {
+            if (fields.size() >= 63) {
+                throw new IllegalStateException("字段数不能超过63个");
+            }
+            fields.add(new Field<>((Kind<Object>) kind, (Function<T, Object>) getter, (BiConsumer<T, Object>) setter));
+            return this;
+        }
+
+        private void write(Writer writer, T value) {
+            // 先写非空字段的位图，空字段不占空间
+            long present = 0;
+            Object[] values = new Object[fields.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = fields.get(i).getter.apply(value);
+                if (values[i] != null) {
+                    present |= 1L << i;
+                }
+            }
+            writer.writeVarLong(present);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    fields.get(i).kind.write(writer, values[i]);
+                }
+            }
+        }
+
+        private T read(Reader reader) {
+            T value = factory.get();
+            long present = reader.readVarLong();
+            for (int i = 0; i < fields.size(); i++) {
+                if ((present & 1L << i) != 0) {
+                    Field<T, Object> field = fields.get(i);
+                    field.setter.accept(value, field.kind.read(reader));
+                }
+            }
+            return value;
+        }
+    }
+
+    private static class Field<T, V> {
+        private final Kind<V> kind;
+        private final Function<T, V> getter;
+        private final BiConsumer<T, V> setter;
+
+        Field(Kind<V> kind, Function<T, V> getter, BiConsumer<T, V> setter) {
+            this.kind = kind;
+            this.getter = getter;
+            this.setter = setter;
+        }
+    }
+
+    /**
+     * 字段的编码方式
+     */
+    public interface Kind<V> {
+
+        void write(Writer writer, V value);
+
+        V read(Reader reader);
+
+        Kind<Long> LONG = new Kind<Long>() {
+            public void write(Writer writer, Long value) {
+                writer.writeZigZag(value);
+            }
+
+            public Long read(Reader reader) {
+                return reader.readZigZag();
+            }
+        };
+
+        Kind<Integer> INT = new Kind<Integer>() {
+            public void write(Writer writer, Integer value) {
+                writer.writeZigZag(value);
+            }
+
+            public Integer read(Reader reader) {
+                return (int) reader.readZigZag();
+            }
+        };
+
+        Kind<Double> DOUBLE = new Kind<Double>() {
+            public void write(Writer writer, Double value) {
+                writer.writeFixedLong(Double.doubleToRawLongBits(value));
+            }
+
+            public Double read(Reader reader) {
+                return Double.longBitsToDouble(reader.readFixedLong());
+            }
+        };
+
+        Kind<String> STRING = new Kind<String>() {
+            public void write(Writer writer, String value) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writer.writeVarLong(bytes.length);
+                writer.writeBytes(bytes);
+            }
+
+            public String read(Reader reader) {
+                int length = (int) reader.readVarLong();
+                return reader.readString(length);
+            }
+        };
+
+        Kind<LocalDateTime> TIME = new Kind<LocalDateTime>() {
+            public void write(Writer writer, LocalDateTime value) {
+                writer.writeZigZag(value.toInstant(ZoneOffset.UTC).toEpochMilli());
+            }
+
+            public LocalDateTime read(Reader reader) {
+                long millis = reader.readZigZag();
+                return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L),
+                        (int) (Math.floorMod(millis, 1000L) * 1000000), ZoneOffset.UTC);
+            }
+        };
+    }
+
+    public static class Writer {
+        private byte[] buffer = new byte[256];
+        private int position;
+
+        void reset() {
+            position = 0;
+        }
+
+        private void ensure(int size) {
+            if (position + size > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + size));
+            }
+        }
+
+        void writeByte(byte value) {
+            ensure(1);
+            buffer[position++] = value;
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeFixedLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[position++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        byte[] toBytes() {
+            return Arrays.copyOf(buffer, position);
+        }
+    }
+
+    public static class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        Reader(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        long readFixedLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = value << 8 | (bytes[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalStateException("变长整数格式错误");
+        }
+
+        long readZigZag() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString(int length) {
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 布隆过滤器，判断一个key一定不存在或者可能存在
+ * 位数组按redis位图的顺序保存（每个字节高位在前），前8个字节是位数和哈希函数个数，
+ * 整个数组可以直接作为redis的string写入，第i位对应redis中偏移量 HEADER_BITS + i 的位，之后用SETBIT增量更新
+ */
+public class BloomFilter {
+
+    public static final int HEADER_BYTES = 8;
+    public static final long HEADER_BITS = HEADER_BYTES * 8L;
+
+    private final int numBits;
+    private final int numHashes;
+    private final byte[] data;
+
+    /**
+     * @param expectedInsertions 预计的元素个数
+     * @param fpp 期望的误判率
+     */
+    public BloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, 1);
+        // m = -n * ln(p) / (ln2)^2，k = m / n * ln2
+        long bits = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numBits = (int) Math.min(Math.max(bits, 64), Integer.MAX_VALUE - 7);
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        this.data = new byte[HEADER_BYTES + (numBits + 7) / 8];
+        ByteBuffer.wrap(data).putInt(numBits).putInt(numHashes);
+    }
+
+    private BloomFilter(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        this.numBits = buffer.getInt();
+        this.numHashes = buffer.getInt();
+        this.data = data;
+    }
+
+    // 从redis中读出的字节数组恢复，格式不对时返回null
+    public static BloomFilter fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length < HEADER_BYTES) {
+            return null;
+        }
+        int numBits = ByteBuffer.wrap(bytes).getInt();
+        if (numBits <= 0 || bytes.length < HEADER_BYTES + (numBits + 7) / 8) {
+            return null;
+        }
+        return new BloomFilter(bytes);
+    }
+
+    // 加入一个元素，返回它对应的各个位，用于同步到redis
+    public synchronized long[] put(String key) {
+        long[] indexes = indexes(key);
+        for (long index : indexes) {
+            data[HEADER_BYTES + (int) (index >>> 3)] |= (byte) (0x80 >>> (index & 7));
+        }
+        return indexes;
+    }
+
+    public boolean mightContain(String key) {
+        for (long index : indexes(key)) {
+            if ((data[HEADER_BYTES + (int) (index >>> 3)] & (0x80 >>> (index & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 双重哈希：第i个哈希值为 h1 + i * h2
+    private long[] indexes(String key) {
+        long[] hash = MurmurHash.hash128(key);
+        long[] indexes = new long[numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < numHashes; i++) {
+            indexes[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return indexes;
+    }
+
+    // 按当前元素个数估算的误判率 (1 - e^(-kn/m))^k
+    public double expectedFpp(long insertions) {
+        return Math.pow(1 - Math.exp(-(double) numHashes * insertions / numBits), numHashes);
+    }
+
+    public synchronized byte[] toBytes() {
+        return data.clone();
+    }
+
+    public int getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    public int getSizeInBytes() {
+        return data.length;
+    }
+}
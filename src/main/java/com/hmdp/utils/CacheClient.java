@@ -1,112 +1,436 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.common.RedisConstants;
-import com.hmdp.pojo.dto.RedisData;
+import com.hmdp.config.CacheProperties;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 /**
  * @author Feg
  * @version 1.0
  * 实现缓存并解决了缓存三个问题的工具类
+ * 开启本地缓存时，redis前面还有一层进程内缓存，直接保存反序列化后的对象，命中时既不访问redis也不解析json；
+ * 通过本工具类写入或删除key时，会通过发布订阅通知所有节点删除本地的副本。本地缓存返回的是共享对象，调用方不要修改
+ * 缓存值通过 CacheCodec 编解码，默认是紧凑的二进制格式，读取时自动识别二进制和原来的json格式
+ * 逻辑过期的缓存在到期之前按概率提前刷新（XFetch）：越接近过期、重建越耗时，提前刷新的概率越大，
+ * 读请求分散地在到期前触发重建，避免所有节点在过期的那一刻同时抢重建锁
+ * 缓存未命中时按key合并加载：同一个节点上同一个key同时只有一个线程查询数据库，其它线程等待并共享它的结果
+ * 逻辑过期的key每次读取时交给 RefreshAheadScheduler 记录访问频率，经常读取的key由它在过期之前后台刷新
+ * HotKeyDetector探测到的热点key（包括其它节点广播的）额外放进一个很小的近端缓存，过期时间很短，本地缓存关闭时也生效
  */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener, MetricsSource {
 
     private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final CacheProperties cacheProperties;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    // 异步重建缓存的线程池，同一个key不会重复提交
+    private final CacheRebuildExecutor rebuildExecutor;
+
+    // 本地缓存，value是 LocalValue
+    private final LocalCache<LocalValue> localCache;
+    // 热点key的近端缓存，容量只够放热点key
+    private final LocalCache<LocalValue> hotCache;
+    private final HotKeyDetector hotKeyDetector;
+    private final RefreshAheadScheduler refreshAhead;
+    // 按缓存key合并数据库加载
+    private final SingleFlight singleFlight = new SingleFlight();
+    // 写入使用配置的编解码器；读取统一用二进制编解码器，它能识别两种格式，切换配置时不影响已有的数据
+    private final CacheCodec codec;
+    private final CacheCodec reader = new BinaryCacheCodec();
+    // key前缀 -> 判断id可能存在的过滤器，一定不存在的id直接返回null
+    private final Map<String, Predicate<Object>> filters = new ConcurrentHashMap<>();
+
+    // 按key前缀统计的命中率和耗时
+    private final CacheMetrics cacheMetrics;
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder earlyRefreshes = new LongAdder();
+    private final LongAdder lateRefreshes = new LongAdder();
+    private final LongAdder refreshSkipped = new LongAdder();
+    private final LongAdder lockContended = new LongAdder();
+    // key前缀 -> 重建耗时的指数移动平均，毫秒
+    private final Map<String, Double> rebuildCosts = new ConcurrentHashMap<>();
 
     // 通过构造函数注入redis客户端
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisMessageListenerContainer redisMessageListenerContainer,
+                       CacheProperties cacheProperties,
+                       CacheRebuildExecutor rebuildExecutor,
+                       CacheMetrics cacheMetrics,
+                       HotKeyDetector hotKeyDetector,
+                       RefreshAheadScheduler refreshAhead) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.refreshAhead = refreshAhead;
+        this.cacheMetrics = cacheMetrics;
+        this.hotKeyDetector = hotKeyDetector;
+        this.rebuildExecutor = rebuildExecutor;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.cacheProperties = cacheProperties;
+        this.localCache = new LocalCache<>(cacheProperties.getLocal().getMaxSize());
+        CacheProperties.HotKey hotKey = cacheProperties.getHotKey();
+        this.hotCache = new LocalCache<>(hotKey.getTopK() + hotKey.getMaxRemoteKeys());
+        this.codec = cacheProperties.getCodec() == CacheProperties.Codec.JSON ? new JsonCacheCodec() : reader;
+    }
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
     }
 
     // 将一个value值缓存进redis，有实际过期时间
     public void set(String key, Object value, Long time, TimeUnit timeUnit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,timeUnit);
+        setRaw(key, codec.encode(value), timeUnit.toMillis(time));
+        publishInvalidate(key);
+    }
+
+    // 注册某个key前缀的过滤器，查询缓存之前先判断
+    public void registerFilter(String keyPrefix, Predicate<Object> mightExist) {
+        filters.put(keyPrefix, mightExist);
+    }
+
+    // 删除缓存，并通知所有节点删除本地的副本
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        publishInvalidate(key);
     }
 
     // 解决缓存穿透的通用方案
     public <R,I> R queryWithPassThrough(
             String prefixKey, I id, Class<R> type, Function<I,R> dbFallBack, Long time, TimeUnit timeUnit){
+        CacheMetrics.PrefixStats stats = cacheMetrics.of(prefixKey);
+        // 过滤器判断一定不存在的id，不访问redis和数据库
+        if (!mightExist(prefixKey, id)) {
+            stats.filtered();
+            return null;
+        }
         // 拼接缓存key
         String key = prefixKey + id;
+        access(stats, key);
+        // 先查本地缓存
+        LocalValue local = getLocal(stats, key);
+        if (local != null) {
+            return type.cast(local.data);
+        }
         // 查缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        long begin = System.nanoTime();
+        byte[] bytes = getRaw(key);
+        long cost = System.nanoTime() - begin;
         // 如果缓存存在
-        if (StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json, type);
+        if (bytes != null && bytes.length > 0){
+            stats.redisHit(cost);
+            R r = reader.decode(bytes, type);
+            putLocal(key, r, CacheCodec.NO_EXPIRE);
+            return r;
         }
         // 对于缓存穿透的解决方案，缓存空值
-        if (json != null){
+        if (bytes != null){
+            stats.nullHit(cost);
             return null;
         }
-        // 不存在就查数据库
-        R r = dbFallBack.apply(id);
-        if (r == null){
-            // 将空值缓存进redis，防止缓存穿透
-            stringRedisTemplate.opsForValue().set(key,"",RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        // 将数据库查出来的数据保存到缓存中
-        this.set(key, r, time, timeUnit);
-        return r;
+        stats.miss(cost);
+        // 不存在就查数据库，并发的未命中合并成一次查询
+        return load(key, () -> {
+            // 可能在排队的时候上一次加载刚刚完成，先再查一次缓存
+            byte[] cached = getRaw(key);
+            if (cached != null) {
+                return cached.length > 0 ? reader.decode(cached, type) : null;
+            }
+            long dbBegin = System.nanoTime();
+            R r = dbFallBack.apply(id);
+            stats.dbLoad(System.nanoTime() - dbBegin);
+            if (r == null){
+                // 将空值缓存进redis，防止缓存穿透
+                setRaw(key, new byte[0], TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL));
+                return null;
+            }
+            // 将数据库查出来的数据保存到缓存中
+            this.set(key, r, time, timeUnit);
+            return r;
+        });
     }
 
     // 使用逻辑过期来解决缓存击穿
     public <R,I> R queryWithLogicalExpire(
             String keyPrefix, I id, Class<R> type, String lockPrefix, Function<I,R> dbFallBack, Long time, TimeUnit timeUnit){
+        CacheMetrics.PrefixStats stats = cacheMetrics.of(keyPrefix);
+        if (!mightExist(keyPrefix, id)) {
+            stats.filtered();
+            return null;
+        }
         String key = keyPrefix + id;
+        access(stats, key);
+        // 先查本地缓存，逻辑上已经过期的要去redis确认，由redis这一层触发重建
+        LocalValue local = getLocal(stats, key);
+        if (local != null && local.expireAt > System.currentTimeMillis()) {
+            trackAccess(keyPrefix, key, id, local.expireAt, lockPrefix, dbFallBack, time, timeUnit);
+            if (shouldRefreshEarly(keyPrefix, local.expireAt)) {
+                rebuildAsync(keyPrefix, key, lockPrefix + id, () -> dbFallBack.apply(id), local.expireAt, time, timeUnit);
+            }
+            return type.cast(local.data);
+        }
         // 查缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        long begin = System.nanoTime();
+        byte[] bytes = getRaw(key);
+        long cost = System.nanoTime() - begin;
         // 如果缓存不存在，直接返回
-        if (StrUtil.isBlank(json)){
+        if (bytes == null || bytes.length == 0){
+            stats.miss(cost);
             return null;
         }
-        // 缓存存在，则将缓存数据反序列化为对象
-        com.hmdp.pojo.dto.RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        // 获取自己存入的过期时间
-        LocalDateTime expireTime = redisData.getExpireTime();
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
+        stats.redisHit(cost);
+        // 先读取自己存入的过期时间，不需要解码数据
+        long expireAt = reader.readExpireAt(bytes);
+        trackAccess(keyPrefix, key, id, expireAt, lockPrefix, dbFallBack, time, timeUnit);
+        // 本地的旧数据和redis中的是同一个版本时直接使用，不再解码
+        R r = local != null && local.expireAt == expireAt ? type.cast(local.data) : reader.decodeData(bytes, type);
         // 判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())){
-            // 未过期，返回数据
+        if (expireAt > System.currentTimeMillis()){
+            // 未过期，放进本地缓存并返回数据，临近过期时按概率提前刷新
+            putLocal(key, r, expireAt);
+            if (shouldRefreshEarly(keyPrefix, expireAt)) {
+                rebuildAsync(keyPrefix, key, lockPrefix + id, () -> dbFallBack.apply(id), expireAt, time, timeUnit);
+            }
             return r;
         }
-        // 过期了，先获取锁
-        String lockKey = lockPrefix + id;
-        boolean getLock = getLock(lockKey);
-        if (getLock){
-            // 获取到锁，要开启一个线程来查询数据库并保存redis
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    R r1 = dbFallBack.apply(id);
-                    this.setWithLogicalExpire(key,r1,time,timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    unLock(lockKey);
-                }
-            });
-        }
+        // 过期了，开启一个线程来查询数据库并保存redis
+        rebuildAsync(keyPrefix, key, lockPrefix + id, () -> dbFallBack.apply(id), expireAt, time, timeUnit);
         // 主线程先返回旧数据
         return r;
     }
 
+    /**
+     * 批量查询逻辑过期的缓存：先查本地缓存，剩下的一次MGET，redis中没有的用一次IN查询从数据库加载，再用一次pipeline写回，
+     * 数据库中也没有的id写入空值，防止缓存穿透。已经过期的和单个查询一样先返回旧数据，由抢到重建锁的节点异步刷新
+     * @param ids 要查询的id，可以重复
+     * @param lockPrefix 异步重建单个key时使用的锁前缀
+     * @param dbFallBack 按一批id查询数据库，例如 listByIds
+     * @param idGetter 从数据库查出的对象上取id，用于和输入对应
+     * @return 和ids一一对应的结果，不存在的位置是null
+     */
+    public <R,I> List<R> queryBatch(String keyPrefix, List<I> ids, Class<R> type, String lockPrefix,
+                                    Function<List<I>, List<R>> dbFallBack, Function<R, I> idGetter,
+                                    Long time, TimeUnit timeUnit) {
+        CacheMetrics.PrefixStats stats = cacheMetrics.of(keyPrefix);
+        Map<I, R> found = new HashMap<>(ids.size() * 2);
+        // 去重之后按顺序排好需要查redis的id
+        List<I> remote = new ArrayList<>();
+        for (I id : new LinkedHashSet<>(ids)) {
+            if (!mightExist(keyPrefix, id)) {
+                stats.filtered();
+                continue;
+            }
+            access(stats, keyPrefix + id);
+            LocalValue local = getLocal(stats, keyPrefix + id);
+            if (local != null && local.expireAt > System.currentTimeMillis()) {
+                trackBatchAccess(keyPrefix, id, local.expireAt, lockPrefix, dbFallBack, time, timeUnit);
+                found.put(id, type.cast(local.data));
+            } else {
+                remote.add(id);
+            }
+        }
+        List<I> misses = new ArrayList<>();
+        if (!remote.isEmpty()) {
+            byte[][] keys = new byte[remote.size()][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = (keyPrefix + remote.get(i)).getBytes(StandardCharsets.UTF_8);
+            }
+            long begin = System.nanoTime();
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(keys));
+            // 每个key的耗时都记为这一次MGET的耗时
+            long cost = System.nanoTime() - begin;
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < remote.size(); i++) {
+                I id = remote.get(i);
+                String key = keyPrefix + id;
+                byte[] bytes = values == null ? null : values.get(i);
+                if (bytes == null) {
+                    stats.miss(cost);
+                    misses.add(id);
+                    continue;
+                }
+                // 空值，数据库中不存在
+                if (bytes.length == 0) {
+                    stats.nullHit(cost);
+                    continue;
+                }
+                stats.redisHit(cost);
+                long expireAt = reader.readExpireAt(bytes);
+                R r = reader.decodeData(bytes, type);
+                found.put(id, r);
+                Supplier<R> loader = () -> loadOne(dbFallBack, id);
+                if (expireAt > now) {
+                    putLocal(key, r, expireAt);
+                    trackBatchAccess(keyPrefix, id, expireAt, lockPrefix, dbFallBack, time, timeUnit);
+                    if (shouldRefreshEarly(keyPrefix, expireAt)) {
+                        rebuildAsync(keyPrefix, key, lockPrefix + id, loader, expireAt, time, timeUnit);
+                    }
+                } else {
+                    // 过期了，返回旧数据，异步重建
+                    rebuildAsync(keyPrefix, key, lockPrefix + id, loader, expireAt, time, timeUnit);
+                }
+            }
+        }
+        if (!misses.isEmpty()) {
+            long dbBegin = System.nanoTime();
+            List<R> loaded = dbFallBack.apply(misses);
+            stats.dbLoad(System.nanoTime() - dbBegin);
+            Map<String, Object> backfill = new LinkedHashMap<>(loaded.size() * 2);
+            for (R r : loaded) {
+                I id = idGetter.apply(r);
+                found.put(id, r);
+                backfill.put(keyPrefix + id, r);
+            }
+            if (!backfill.isEmpty()) {
+                setBatchWithLogicalExpire(backfill, time, timeUnit, 0, true);
+            }
+            List<byte[]> absent = new ArrayList<>();
+            for (I id : misses) {
+                if (!found.containsKey(id)) {
+                    absent.add((keyPrefix + id).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            if (!absent.isEmpty()) {
+                // 数据库中不存在的id写入空值，和单个查询的空值过期时间一样
+                long nullTtl = TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL);
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (byte[] key : absent) {
+                        connection.pSetEx(key, nullTtl, new byte[0]);
+                    }
+                    return null;
+                });
+            }
+        }
+        List<R> result = new ArrayList<>(ids.size());
+        for (I id : ids) {
+            result.add(found.get(id));
+        }
+        return result;
+    }
+
+    // 用批量加载的方式加载一个id
+    private static <R,I> R loadOne(Function<List<I>, List<R>> dbFallBack, I id) {
+        List<R> loaded = dbFallBack.apply(Collections.singletonList(id));
+        return loaded.isEmpty() ? null : loaded.get(0);
+    }
+
+    // 记录逻辑过期key的访问，连同这次调用的加载方式、锁和过期时间，提前刷新时按它们重建
+    private <R,I> void trackAccess(String keyPrefix, String key, I id, long expireAt,
+                                   String lockPrefix, Function<I,R> dbFallBack, Long time, TimeUnit timeUnit) {
+        if (!refreshAhead.isEnabled() || expireAt == CacheCodec.NO_EXPIRE) {
+            return;
+        }
+        refreshAhead.track(keyPrefix, key, id, expireAt, (k, i, observedExpireAt) -> rebuildAsync(keyPrefix, k, lockPrefix + id,
+                () -> dbFallBack.apply(id), observedExpireAt, time, timeUnit));
+    }
+
+    // 批量查询按单个id调用批量加载函数刷新
+    private <R,I> void trackBatchAccess(String keyPrefix, I id, long expireAt, String lockPrefix,
+                                        Function<List<I>, List<R>> dbFallBack, Long time, TimeUnit timeUnit) {
+        if (!refreshAhead.isEnabled() || expireAt == CacheCodec.NO_EXPIRE) {
+            return;
+        }
+        refreshAhead.track(keyPrefix, keyPrefix + id, id, expireAt, (k, i, observedExpireAt) -> rebuildAsync(keyPrefix, k, lockPrefix + id,
+                () -> loadOne(dbFallBack, id), observedExpireAt, time, timeUnit));
+    }
+
+    private boolean mightExist(String keyPrefix, Object id) {
+        Predicate<Object> filter = filters.get(keyPrefix);
+        return filter == null || filter.test(id);
+    }
+
+    // 按key合并加载，没有开启合并时直接加载
+    private <R> R load(String key, Supplier<R> loader) {
+        CacheProperties.SingleFlight config = cacheProperties.getSingleFlight();
+        if (!config.isEnabled()) {
+            return loader.get();
+        }
+        return singleFlight.execute(key, loader, config.getTimeoutMs());
+    }
+
+    // 异步重建逻辑过期的缓存。本节点已经在重建的key直接跳过，不再去redis抢锁
+    // observedExpireAt是触发重建时看到的过期时间，拿到锁之后redis中的版本已经变了说明别的节点刚刚重建过，不再重复查询
+    private boolean rebuildAsync(String keyPrefix, String key, String lockKey, Supplier<?> dbFallBack,
+                                 long observedExpireAt, Long time, TimeUnit timeUnit) {
+        return rebuildExecutor.submit(keyPrefix, key, () -> {
+            // 获取到分布式锁的节点才查询数据库
+            if (!getLock(lockKey)) {
+                lockContended.increment();
+                return;
+            }
+            try {
+                byte[] current = getRaw(key);
+                if (current == null || current.length == 0 || reader.readExpireAt(current) != observedExpireAt) {
+                    refreshSkipped.increment();
+                    return;
+                }
+                CacheMetrics.PrefixStats stats = cacheMetrics.of(keyPrefix);
+                long begin = System.nanoTime();
+                Object value = dbFallBack.get();
+                stats.dbLoad(System.nanoTime() - begin);
+                if (value == null) {
+                    // 数据已经被删除，写入空值
+                    setRaw(key, new byte[0], TimeUnit.MINUTES.toMillis(RedisConstants.CACHE_NULL_TTL));
+                    publishInvalidate(key);
+                    return;
+                }
+                this.setWithLogicalExpire(key, value, time, timeUnit);
+                recordRebuildCost(keyPrefix, (System.nanoTime() - begin) / 1e6);
+                stats.rebuild();
+                if (observedExpireAt > System.currentTimeMillis()) {
+                    earlyRefreshes.increment();
+                } else {
+                    lateRefreshes.increment();
+                }
+            } finally {
+                unLock(lockKey);
+            }
+        });
+    }
+
+    /**
+     * XFetch：now - delta * beta * ln(rand) >= expireAt 时提前刷新，rand在(0,1]之间均匀分布
+     * delta是这个前缀重建的平均耗时，-ln(rand)服从指数分布，离过期还有t毫秒时触发的概率是 e^(-t / (delta * beta))
+     */
+    private boolean shouldRefreshEarly(String keyPrefix, long expireAt) {
+        CacheProperties.EarlyRefresh config = cacheProperties.getEarlyRefresh();
+        if (!config.isEnabled() || expireAt == CacheCodec.NO_EXPIRE) {
+            return false;
+        }
+        double delta = rebuildCosts.getOrDefault(keyPrefix, (double) config.getInitialRebuildMs());
+        double rand = 1 - ThreadLocalRandom.current().nextDouble();
+        return System.currentTimeMillis() - delta * config.getBeta() * Math.log(rand) >= expireAt;
+    }
+
+    private void recordRebuildCost(String keyPrefix, double costMs) {
+        rebuildCosts.merge(keyPrefix, costMs, (old, cost) -> old * 0.8 + cost * 0.2);
+    }
+
     public boolean getLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10L, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
@@ -117,9 +441,175 @@ public class CacheClient {
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit) {
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(time));
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        long expireAt = System.currentTimeMillis() + timeUnit.toMillis(time);
+        setRaw(key, codec.encode(value, expireAt), 0);
+        publishInvalidate(key);
+    }
+
+    /**
+     * 用一次pipeline批量写入逻辑过期的缓存，同时通知其它节点删除本地的旧副本
+     * @param values 缓存key -> 数据
+     * @param spreadRatio 大于0时每个key的过期时间在 [time, time * (1 + spreadRatio)] 之间随机分散，避免同时过期
+     * @param overwrite 为false时只写入不存在的key（SET NX），已有的数据没有变化，也就不需要通知其它节点
+     */
+    public void setBatchWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit timeUnit,
+                                          double spreadRatio, boolean overwrite) {
+        long now = System.currentTimeMillis();
+        long ttl = timeUnit.toMillis(time);
+        List<byte[]> keys = new ArrayList<>(values.size());
+        List<byte[]> encoded = new ArrayList<>(values.size());
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            long expireAt = now + ttl + (spreadRatio > 0 ? (long) (ttl * spreadRatio * random.nextDouble()) : 0);
+            keys.add(entry.getKey().getBytes(StandardCharsets.UTF_8));
+            encoded.add(codec.encode(entry.getValue(), expireAt));
+        }
+        boolean publish = overwrite && nearCacheEnabled();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] channel = RedisConstants.CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0; i < keys.size(); i++) {
+                if (overwrite) {
+                    connection.set(keys.get(i), encoded.get(i));
+                } else {
+                    connection.setNX(keys.get(i), encoded.get(i));
+                }
+                if (publish) {
+                    connection.publish(channel, keys.get(i));
+                }
+            }
+            return null;
+        });
+        if (overwrite) {
+            values.keySet().forEach(this::removeLocal);
+        }
+    }
+
+    private byte[] getRaw(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // ttlMillis不大于0时不设置过期时间
+    private void setRaw(String key, byte[] value, long ttlMillis) {
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            if (ttlMillis > 0) {
+                connection.pSetEx(rawKey, ttlMillis, value);
+            } else {
+                connection.set(rawKey, value);
+            }
+            return null;
+        });
+    }
+
+    private void access(CacheMetrics.PrefixStats stats, String key) {
+        stats.access(key);
+        hotKeyDetector.record(key);
+    }
+
+    // 先查热点key的近端缓存，再查本地缓存
+    private LocalValue getLocal(CacheMetrics.PrefixStats stats, String key) {
+        if (!nearCacheEnabled()) {
+            return null;
+        }
+        LocalValue value = hotKeyDetector.isEnabled() ? hotCache.get(key) : null;
+        if (value == null && cacheProperties.getLocal().isEnabled()) {
+            value = localCache.get(key);
+        }
+        if (value == null) {
+            stats.localMiss();
+        } else {
+            stats.localHit();
+        }
+        return value;
+    }
+
+    private void putLocal(String key, Object data, long expireAt) {
+        LocalValue value = null;
+        if (cacheProperties.getLocal().isEnabled()) {
+            value = new LocalValue(data, expireAt);
+            localCache.put(key, value, TimeUnit.SECONDS.toMillis(cacheProperties.getLocal().getTtlSeconds()));
+        }
+        if (hotKeyDetector.isHot(key)) {
+            hotCache.put(key, value != null ? value : new LocalValue(data, expireAt),
+                    cacheProperties.getHotKey().getNearCacheTtlMs());
+        }
+    }
+
+    private void removeLocal(String key) {
+        localCache.remove(key);
+        hotCache.remove(key);
+    }
+
+    private boolean nearCacheEnabled() {
+        return cacheProperties.getLocal().isEnabled() || hotKeyDetector.isEnabled();
+    }
+
+    // 先删除自己的副本，再通知其它节点（自己也会收到一次，重复删除没有影响）
+    private void publishInvalidate(String key) {
+        removeLocal(key);
+        if (nearCacheEnabled()) {
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        removeLocal(new String(message.getBody(), StandardCharsets.UTF_8));
+        invalidations.increment();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "cache";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        // 所有前缀的合计，分前缀的数据见 cache-prefix
+        long l1Hits = 0, l1Misses = 0, l2Hits = 0, l2Misses = 0;
+        for (CacheMetrics.PrefixStats stats : cacheMetrics.getStats().values()) {
+            l1Hits += stats.getLocalHits();
+            l1Misses += stats.getLocalMisses();
+            l2Hits += stats.getRedisHits();
+            l2Misses += stats.getRedisMisses();
+        }
+        map.put("localEnabled", cacheProperties.getLocal().isEnabled());
+        map.put("localSize", localCache.size());
+        map.put("hotCacheSize", hotCache.size());
+        map.put("localHits", l1Hits);
+        map.put("localMisses", l1Misses);
+        map.put("localHitRatio", ratio(l1Hits, l1Misses));
+        map.put("redisHits", l2Hits);
+        map.put("redisMisses", l2Misses);
+        map.put("redisHitRatio", ratio(l2Hits, l2Misses));
+        map.put("invalidations", invalidations.sum());
+        map.put("earlyRefreshes", earlyRefreshes.sum());
+        map.put("lateRefreshes", lateRefreshes.sum());
+        map.put("refreshSkipped", refreshSkipped.sum());
+        map.put("refreshLockContended", lockContended.sum());
+        map.put("rebuildCostMs", new LinkedHashMap<>(rebuildCosts));
+        map.put("loads", singleFlight.getLoads());
+        map.put("coalesced", singleFlight.getCoalesced());
+        map.put("loadTimeouts", singleFlight.getTimeouts());
+        map.put("loadsInFlight", singleFlight.getInFlight());
+        return map;
+    }
+
+    private static double ratio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private static class LocalValue {
+        private final Object data;
+        // 逻辑过期的毫秒时间戳，没有逻辑过期的是Long.MAX_VALUE
+        private final long expireAt;
+
+        LocalValue(Object data, long expireAt) {
+            this.data = data;
+            this.expireAt = expireAt;
+        }
     }
 }
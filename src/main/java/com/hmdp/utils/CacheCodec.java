@@ -0,0 +1,28 @@
+package com.hmdp.utils;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 缓存值的编解码器，CacheClient 通过它读写redis中的缓存
+ * 逻辑过期的缓存把过期时间和数据编码在一起，readExpireAt 只读取过期时间，解码数据之前就可以判断是否过期
+ */
+public interface CacheCodec {
+
+    // 没有逻辑过期时间
+    long NO_EXPIRE = Long.MAX_VALUE;
+
+    // 编码普通缓存
+    byte[] encode(Object value);
+
+    // 编码逻辑过期的缓存，expireAt是过期的毫秒时间戳
+    byte[] encode(Object value, long expireAt);
+
+    // 解码普通缓存
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    // 读取逻辑过期缓存的过期时间，不解码数据
+    long readExpireAt(byte[] bytes);
+
+    // 解码逻辑过期缓存中的数据
+    <R> R decodeData(byte[] bytes, Class<R> type);
+}
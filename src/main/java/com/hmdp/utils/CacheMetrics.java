@@ -0,0 +1,164 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 按缓存key前缀统计的命中、空值命中、未命中、重建次数，以及redis和数据库的耗时分布
+ * CacheClient 和自己读写redis的缓存（例如商铺类型）都记录到这里，通过 /metrics/cache-prefix 采集
+ */
+@Component
+public class CacheMetrics implements MetricsSource {
+
+    private final CacheProperties.Metrics config;
+    private final Map<String, PrefixStats> stats = new ConcurrentHashMap<>();
+
+    public CacheMetrics(CacheProperties cacheProperties) {
+        this.config = cacheProperties.getMetrics();
+    }
+
+    public PrefixStats of(String keyPrefix) {
+        PrefixStats prefixStats = stats.get(keyPrefix);
+        if (prefixStats == null) {
+            prefixStats = stats.computeIfAbsent(keyPrefix,
+                    p -> new PrefixStats(config.getTopKeysCapacity(), config.getTopKeysSampleRate()));
+        }
+        return prefixStats;
+    }
+
+    public Map<String, PrefixStats> getStats() {
+        return stats;
+    }
+
+    // 访问次数最多的key，prefix为空时返回所有前缀的
+    public Map<String, List<Map<String, Object>>> topKeys(String keyPrefix, int limit) {
+        Map<String, List<Map<String, Object>>> result = new TreeMap<>();
+        stats.forEach((prefix, prefixStats) -> {
+            if (keyPrefix == null || keyPrefix.equals(prefix)) {
+                result.put(prefix, prefixStats.topKeys.top(limit));
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "cache-prefix";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> map = new TreeMap<>();
+        stats.forEach((prefix, prefixStats) -> map.put(prefix, prefixStats.snapshot()));
+        return map;
+    }
+
+    public static class PrefixStats {
+        private final LongAdder localHits = new LongAdder();
+        private final LongAdder localMisses = new LongAdder();
+        private final LongAdder redisHits = new LongAdder();
+        private final LongAdder nullHits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder filtered = new LongAdder();
+        private final LongAdder dbLoads = new LongAdder();
+        private final LongAdder rebuilds = new LongAdder();
+        private final LatencyHistogram redisLatency = new LatencyHistogram();
+        private final LatencyHistogram dbLatency = new LatencyHistogram();
+        private final TopKeys topKeys;
+
+        PrefixStats(int topKeysCapacity, int topKeysSampleRate) {
+            this.topKeys = new TopKeys(topKeysCapacity, topKeysSampleRate);
+        }
+
+        // 每次访问记录一次，用于统计热点key
+        public void access(String key) {
+            topKeys.record(key);
+        }
+
+        public void localHit() {
+            localHits.increment();
+        }
+
+        public void localMiss() {
+            localMisses.increment();
+        }
+
+        public void redisHit(long nanos) {
+            redisHits.increment();
+            redisLatency.recordNanos(nanos);
+        }
+
+        // redis中缓存的是空值
+        public void nullHit(long nanos) {
+            nullHits.increment();
+            redisLatency.recordNanos(nanos);
+        }
+
+        // redis中没有，或者逻辑过期后批量查询时当作未命中
+        public void miss(long nanos) {
+            misses.increment();
+            redisLatency.recordNanos(nanos);
+        }
+
+        // 被过滤器判断为一定不存在
+        public void filtered() {
+            filtered.increment();
+        }
+
+        // 查询一次数据库，包括未命中加载和重建
+        public void dbLoad(long nanos) {
+            dbLoads.increment();
+            dbLatency.recordNanos(nanos);
+        }
+
+        public void rebuild() {
+            rebuilds.increment();
+        }
+
+        public long getLocalHits() {
+            return localHits.sum();
+        }
+
+        public long getLocalMisses() {
+            return localMisses.sum();
+        }
+
+        public long getRedisHits() {
+            return redisHits.sum() + nullHits.sum();
+        }
+
+        public long getRedisMisses() {
+            return misses.sum();
+        }
+
+        public Map<String, Object> snapshot() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            long l1Hits = localHits.sum();
+            long l2Hits = redisHits.sum();
+            long nulls = nullHits.sum();
+            long l2Misses = misses.sum();
+            map.put("localHits", l1Hits);
+            map.put("localMisses", localMisses.sum());
+            map.put("redisHits", l2Hits);
+            map.put("nullHits", nulls);
+            map.put("misses", l2Misses);
+            map.put("filtered", filtered.sum());
+            long requests = l1Hits + l2Hits + nulls + l2Misses;
+            map.put("hitRatio", requests == 0 ? 0 : (double) (l1Hits + l2Hits + nulls) / requests);
+            map.put("dbLoads", dbLoads.sum());
+            map.put("rebuilds", rebuilds.sum());
+            map.put("redisLatencyUs", redisLatency.snapshot());
+            map.put("dbLatencyUs", dbLatency.snapshot());
+            return map;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 缓存重建的线程池：队列有界，同一个key在排队或执行期间不会重复提交，每个key前缀同时在途的重建数有上限
+ * 队列满或者前缀超过上限时直接拒绝，调用方继续返回旧数据，下一次读到过期数据时会再次提交
+ * 任务抛出的异常记录日志和失败数，不会被线程池吞掉；Spring关闭时等待已经提交的任务执行完
+ */
+@Slf4j
+@Component
+public class CacheRebuildExecutor implements MetricsSource {
+
+    private final CacheProperties.Rebuild config;
+    private final ThreadPoolExecutor executor;
+
+    // 排队或者执行中的key
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+    // key前缀 -> 剩余的并发数
+    private final Map<String, Semaphore> prefixPermits = new ConcurrentHashMap<>();
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder deduplicated = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder prefixLimited = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram rebuildLatency = new LatencyHistogram();
+
+    public CacheRebuildExecutor(CacheProperties cacheProperties) {
+        this.config = cacheProperties.getRebuild();
+        AtomicInteger index = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(config.getThreads(), config.getThreads(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getQueueCapacity()), r -> {
+                    Thread thread = new Thread(r, "cache-rebuild-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * 提交一个重建任务
+     * @param keyPrefix 缓存key前缀，用于并发限制和统计
+     * @param key 缓存key，同一个key同时只有一个任务
+     * @return 是否接受了这个任务，重复、队列满、超过前缀并发上限时返回false
+     */
+    public boolean submit(String keyPrefix, String key, Runnable task) {
+        if (!inFlight.add(key)) {
+            deduplicated.increment();
+            return false;
+        }
+        Semaphore permits = prefixPermits.computeIfAbsent(keyPrefix, p -> new Semaphore(config.getMaxPerPrefix()));
+        if (!permits.tryAcquire()) {
+            inFlight.remove(key);
+            prefixLimited.increment();
+            return false;
+        }
+        long submitAt = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long begin = System.nanoTime();
+                boolean success = false;
+                try {
+                    queueLatency.recordNanos(begin - submitAt);
+                    task.run();
+                    success = true;
+                } catch (Exception e) {
+                    log.error("重建缓存失败, key: {}", key, e);
+                } finally {
+                    // 加载抛出Error时也要先归还并发名额、解除去重，否则这个key再也不会重建，前缀永久少一个名额
+                    permits.release();
+                    inFlight.remove(key);
+                    (success ? completed : failed).increment();
+                    rebuildLatency.recordNanos(System.nanoTime() - begin);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            inFlight.remove(key);
+            rejected.increment();
+            log.debug("重建队列已满，放弃重建 key: {}", key);
+            return false;
+        }
+        submitted.increment();
+        return true;
+    }
+
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        executor.shutdown();
+        if (!executor.awaitTermination(config.getShutdownTimeoutMs(), TimeUnit.MILLISECONDS)) {
+            log.warn("缓存重建任务在{}毫秒内没有执行完，剩余{}个任务被取消",
+                    config.getShutdownTimeoutMs(), executor.shutdownNow().size());
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "cache-rebuild";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("queueDepth", executor.getQueue().size());
+        map.put("active", executor.getActiveCount());
+        map.put("inFlight", inFlight.size());
+        map.put("submitted", submitted.sum());
+        map.put("deduplicated", deduplicated.sum());
+        map.put("rejected", rejected.sum());
+        map.put("prefixLimited", prefixLimited.sum());
+        map.put("completed", completed.sum());
+        map.put("failed", failed.sum());
+        Map<String, Object> prefixInFlight = new LinkedHashMap<>();
+        prefixPermits.forEach((prefix, permits) ->
+                prefixInFlight.put(prefix, config.getMaxPerPrefix() - permits.availablePermits()));
+        map.put("prefixInFlight", prefixInFlight);
+        map.put("queueLatency", queueLatency.snapshot());
+        map.put("rebuildLatency", rebuildLatency.snapshot());
+        return map;
+    }
+}
@@ -0,0 +1,77 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * Count-Min Sketch：depth行、每行width个计数器，一个key在每一行落到一个计数器上，估计值取这几个计数器的最小值
+ * 估计值只会多算不会少算，内存固定为 depth * width 个int，和key的数量无关
+ * decay把所有计数器减半，按时间窗口调用后计数反映的是最近的访问频率
+ */
+public class CountMinSketch {
+
+    private final int depth;
+    private final int mask;
+    private final AtomicIntegerArray counters;
+
+    // width向上取到2的幂
+    public CountMinSketch(int depth, int width) {
+        int size = Integer.highestOneBit(Math.max(2, width) - 1) << 1;
+        this.depth = Math.max(1, depth);
+        this.mask = size - 1;
+        this.counters = new AtomicIntegerArray(this.depth * size);
+    }
+
+    // 增加key的计数，返回增加之后的估计值
+    public int add(String key, int count) {
+        int h = key.hashCode();
+        int h1 = mix(h);
+        int h2 = mix(h ^ 0x9E3779B9) | 1;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int index = i * (mask + 1) + ((h1 + i * h2) & mask);
+            min = Math.min(min, counters.addAndGet(index, count));
+        }
+        return min;
+    }
+
+    public int estimate(String key) {
+        int h = key.hashCode();
+        int h1 = mix(h);
+        int h2 = mix(h ^ 0x9E3779B9) | 1;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            min = Math.min(min, counters.get(i * (mask + 1) + ((h1 + i * h2) & mask)));
+        }
+        return min;
+    }
+
+    // 所有计数器减半，和并发的add之间可能丢失少量计数
+    public void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            int value = counters.get(i);
+            if (value != 0) {
+                counters.set(i, value >>> 1);
+            }
+        }
+    }
+
+    public int getWidth() {
+        return mask + 1;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    // murmur3的fmix32，让String.hashCode的低位也分布均匀
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,183 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 哈希时间轮，用一个线程管理大量的超时任务
+ * 添加任务只是放进一个无锁队列，时间 O(1)；工作线程每个刻度把新任务挂到对应的格子里，
+ * 再处理当前格子中到期的任务，跨越多圈的任务用剩余圈数区分
+ * 到期的任务攒成批交给回调处理，回调抛出异常时整批在重试间隔之后重新到期
+ */
+@Slf4j
+public class HashedTimingWheel<T> {
+
+    // 每个刻度最多从队列搬运的新任务数，避免一次搬运太多导致刻度严重延迟
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private final long tickMs;
+    private final int mask;
+    private final Timeout<T>[] buckets;
+    private final int batchSize;
+    private final long retryDelayMs;
+    private final Consumer<List<T>> handler;
+    private final Thread worker;
+
+    private final Queue<Timeout<T>> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicLong pending = new AtomicLong();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+
+    private volatile boolean running = true;
+    private long startTime;
+    private long tick;
+
+    @SuppressWarnings("unchecked")
+    public HashedTimingWheel(String name, long tickMs, int wheelSize, int batchSize, long retryDelayMs,
+                             Consumer<List<T>> handler) {
+        // 格子数向上取整为2的幂
+        int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+        this.tickMs = tickMs;
+        this.mask = size - 1;
+        this.buckets = (Timeout<T>[]) new Timeout<?>[size];
+        this.batchSize = batchSize;
+        this.retryDelayMs = retryDelayMs;
+        this.handler = handler;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    public void start() {
+        startTime = System.currentTimeMillis();
+        worker.start();
+    }
+
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    /**
+     * 添加一个任务，任意线程可以调用
+     * @param item 任务数据
+     * @param deadline 到期时间的毫秒时间戳，已经过去的时间在下一个刻度到期
+     */
+    public void schedule(T item, long deadline) {
+        incoming.add(new Timeout<>(item, deadline));
+        pending.incrementAndGet();
+    }
+
+    public long getPending() {
+        return pending.get();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    private void run() {
+        List<T> batch = new ArrayList<>(batchSize);
+        while (running) {
+            long deadline = startTime + (tick + 1) * tickMs;
+            long sleepMs = deadline - System.currentTimeMillis();
+            if (sleepMs > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(sleepMs);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            transferIncoming();
+            expireBucket(tick & mask, deadline, batch);
+            if (!batch.isEmpty()) {
+                flush(batch);
+            }
+            tick++;
+        }
+    }
+
+    // 把新任务挂到对应的格子上
+    private void transferIncoming() {
+        for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+            Timeout<T> timeout = incoming.poll();
+            if (timeout == null) {
+                return;
+            }
+            // 任务应当在第几个刻度到期，已经过期的放到当前刻度
+            long calculated = Math.max((timeout.deadline - startTime) / tickMs, tick);
+            timeout.rounds = (calculated - tick) >> Integer.bitCount(mask);
+            int index = (int) (calculated & mask);
+            timeout.next = buckets[index];
+            buckets[index] = timeout;
+        }
+    }
+
+    private void expireBucket(long index, long deadline, List<T> batch) {
+        Timeout<T> prev = null;
+        Timeout<T> timeout = buckets[(int) index];
+        while (timeout != null) {
+            Timeout<T> next = timeout.next;
+            if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+                // 从链表中摘除
+                if (prev == null) {
+                    buckets[(int) index] = next;
+                } else {
+                    prev.next = next;
+                }
+                pending.decrementAndGet();
+                batch.add(timeout.item);
+                if (batch.size() >= batchSize) {
+                    flush(batch);
+                }
+            } else {
+                timeout.rounds--;
+                prev = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    private void flush(List<T> batch) {
+        try {
+            handler.accept(batch);
+            expired.add(batch.size());
+        } catch (Exception e) {
+            log.error("处理到期任务异常，{}毫秒后重试", retryDelayMs, e);
+            long retryAt = System.currentTimeMillis() + retryDelayMs;
+            for (T item : batch) {
+                schedule(item, retryAt);
+            }
+            retried.add(batch.size());
+        }
+        batch.clear();
+    }
+
+    private static class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private long rounds;
+        private Timeout<T> next;
+
+        Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.common.RedisConstants;
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 读路径上的热点key探测：访问按采样计入Count-Min Sketch，每个时间窗口结束时计数减半，估计值超过阈值的key成为热点
+ * 热点候选最多topK个，计数不够的候选被更热的key替换，所以探测占用的内存是固定的，和key的数量无关
+ * 本节点的热点key每个窗口广播一次，其它节点收到后在一段时间内也把它当作热点，CacheClient把热点key放进短过期的近端缓存
+ */
+@Slf4j
+@Component
+public class HotKeyDetector implements MessageListener, MetricsSource {
+
+    private static final String INSTANCE_ID = UUID.randomUUID().toString(true);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private CacheProperties cacheProperties;
+
+    private CountMinSketch sketch;
+    // 本节点探测到的热点key，value没有意义，排名时从sketch中重新估计
+    private final Map<String, Boolean> candidates = new ConcurrentHashMap<>();
+    // 其它节点广播的热点key -> 失效时间戳
+    private final Map<String, Long> remoteHot = new ConcurrentHashMap<>();
+
+    private final LongAdder promoted = new LongAdder();
+    private final LongAdder demoted = new LongAdder();
+    private final LongAdder replaced = new LongAdder();
+    private final LongAdder windows = new LongAdder();
+
+    private final ScheduledExecutorService windowExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "hot-key-window");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        CacheProperties.HotKey config = cacheProperties.getHotKey();
+        sketch = new CountMinSketch(config.getDepth(), config.getWidth());
+        if (!config.isEnabled()) {
+            return;
+        }
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_HOT_KEY_CHANNEL));
+        windowExecutor.scheduleWithFixedDelay(this::closeWindow, config.getWindowMs(), config.getWindowMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        windowExecutor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return cacheProperties.getHotKey().isEnabled();
+    }
+
+    // 记录一次访问，每sampleRate次计入一次
+    public void record(String key) {
+        CacheProperties.HotKey config = cacheProperties.getHotKey();
+        if (!config.isEnabled()) {
+            return;
+        }
+        int sampleRate = Math.max(1, config.getSampleRate());
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        int estimate = sketch.add(key, sampleRate);
+        // 已经是候选的热点key只需要一次查找，不加锁
+        if (estimate >= config.getThreshold() && !candidates.containsKey(key) && promote(key, estimate, config)) {
+            log.debug("发现热点key {}，估计访问次数 {}", key, estimate);
+            publish(key);
+        }
+    }
+
+    public boolean isHot(String key) {
+        if (!cacheProperties.getHotKey().isEnabled()) {
+            return false;
+        }
+        if (candidates.containsKey(key)) {
+            return true;
+        }
+        Long until = remoteHot.get(key);
+        return until != null && until > System.currentTimeMillis();
+    }
+
+    // 候选满了时替换估计值最小的那个，新key不比它热就放弃
+    private synchronized boolean promote(String key, int estimate, CacheProperties.HotKey config) {
+        if (candidates.containsKey(key)) {
+            return false;
+        }
+        if (candidates.size() >= config.getTopK()) {
+            String coldest = null;
+            int min = Integer.MAX_VALUE;
+            for (String candidate : candidates.keySet()) {
+                int value = sketch.estimate(candidate);
+                if (value < min) {
+                    min = value;
+                    coldest = candidate;
+                }
+            }
+            if (coldest == null || min >= estimate) {
+                return false;
+            }
+            candidates.remove(coldest);
+            replaced.increment();
+        }
+        candidates.put(key, Boolean.TRUE);
+        promoted.increment();
+        return true;
+    }
+
+    // 窗口结束：先淘汰不够热的候选，再把计数减半，最后广播仍然是热点的key
+    private void closeWindow() {
+        try {
+            CacheProperties.HotKey config = cacheProperties.getHotKey();
+            synchronized (this) {
+                candidates.keySet().removeIf(key -> {
+                    boolean cold = sketch.estimate(key) < config.getThreshold();
+                    if (cold) {
+                        demoted.increment();
+                    }
+                    return cold;
+                });
+            }
+            sketch.decay();
+            windows.increment();
+            long now = System.currentTimeMillis();
+            remoteHot.values().removeIf(until -> until < now);
+            if (!candidates.isEmpty()) {
+                publish(String.join("\n", candidates.keySet()));
+            }
+        } catch (Exception e) {
+            log.error("热点key窗口处理异常", e);
+        }
+    }
+
+    // 消息格式：节点id，后面每行一个key
+    private void publish(String keys) {
+        if (cacheProperties.getHotKey().isBroadcast()) {
+            stringRedisTemplate.convertAndSend(RedisConstants.CACHE_HOT_KEY_CHANNEL, INSTANCE_ID + "\n" + keys);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String[] lines = new String(message.getBody(), StandardCharsets.UTF_8).split("\n");
+        if (lines.length < 2 || INSTANCE_ID.equals(lines[0])) {
+            return;
+        }
+        CacheProperties.HotKey config = cacheProperties.getHotKey();
+        long until = System.currentTimeMillis() + config.getRemoteTtlMs();
+        for (int i = 1; i < lines.length; i++) {
+            // 超过上限时只刷新已有的key，不再增加
+            if (remoteHot.size() < config.getMaxRemoteKeys() || remoteHot.containsKey(lines[i])) {
+                remoteHot.put(lines[i], until);
+            }
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "hot-key";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        CacheProperties.HotKey config = cacheProperties.getHotKey();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", config.isEnabled());
+        List<Map<String, Object>> hot = new ArrayList<>(candidates.size());
+        for (String key : candidates.keySet()) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", key);
+            item.put("estimate", sketch.estimate(key));
+            hot.add(item);
+        }
+        hot.sort((a, b) -> Integer.compare((Integer) b.get("estimate"), (Integer) a.get("estimate")));
+        map.put("hotKeys", hot);
+        long now = System.currentTimeMillis();
+        List<String> remote = new ArrayList<>();
+        remoteHot.forEach((key, until) -> {
+            if (until > now) {
+                remote.add(key);
+            }
+        });
+        map.put("remoteHotKeys", remote);
+        map.put("promoted", promoted.sum());
+        map.put("demoted", demoted.sum());
+        map.put("replaced", replaced.sum());
+        map.put("windows", windows.sum());
+        map.put("sketchBytes", 4L * sketch.getDepth() * sketch.getWidth());
+        return map;
+    }
+}
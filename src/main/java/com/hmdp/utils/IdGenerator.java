@@ -0,0 +1,15 @@
+package com.hmdp.utils;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 全局唯一id生成器，通过 hmdp.id.generator 选择实现：redis 为 RedisIdWorker，snowflake 为 SnowflakeIdGenerator
+ */
+public interface IdGenerator {
+
+    /**
+     * @param keyPrefix 业务前缀，不同业务的序列号可以分开计数
+     * @return 全局唯一、大致按时间递增的id
+     */
+    Long nextId(String keyPrefix);
+}
@@ -0,0 +1,48 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.pojo.dto.RedisData;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 原来的json格式：普通缓存是对象的json，逻辑过期的缓存是 RedisData 的json，兼容已经写入redis的数据
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public byte[] encode(Object value, long expireAt) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+        return encode(redisData);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public long readExpireAt(byte[] bytes) {
+        LocalDateTime expireTime = decode(bytes, RedisData.class).getExpireTime();
+        return expireTime == null ? NO_EXPIRE : expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public <R> R decodeData(byte[] bytes, Class<R> type) {
+        RedisData redisData = decode(bytes, RedisData.class);
+        return JSONUtil.toBean((JSONObject) redisData.getData(), type);
+    }
+}
@@ -0,0 +1,103 @@
+package com.hmdp.utils;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 有容量上限的本地缓存，读操作不加锁
+ * 超过容量时按CLOCK算法淘汰：每个条目有一个访问标记，淘汰指针扫过时清除标记，没有被再次访问过的条目被淘汰，
+ * 近似LRU的效果，但读的时候只需要写一个标记，不需要像LinkedHashMap那样调整链表
+ */
+public class LocalCache<V> {
+
+    private final int maxSize;
+    private final ConcurrentHashMap<String, Entry<V>> map;
+    // 同一时间只有一个线程执行淘汰，其它线程直接跳过
+    private final ReentrantLock evictLock = new ReentrantLock();
+    private Iterator<Map.Entry<String, Entry<V>>> hand;
+
+    public LocalCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.map = new ConcurrentHashMap<>(Math.min(maxSize, 1 << 16) * 4 / 3 + 1);
+    }
+
+    public V get(String key) {
+        Entry<V> entry = map.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAt < System.currentTimeMillis()) {
+            map.remove(key, entry);
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.value;
+    }
+
+    public void put(String key, V value, long ttlMillis) {
+        map.put(key, new Entry<>(value, System.currentTimeMillis() + ttlMillis));
+        if (map.size() > maxSize) {
+            evict(key);
+        }
+    }
+
+    public void remove(String key) {
+        map.remove(key);
+    }
+
+    public void clear() {
+        map.clear();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    // 跳过刚写入的key，新条目还没有访问标记，否则可能刚写入就被淘汰
+    private void evict(String justPut) {
+        if (!evictLock.tryLock()) {
+            return;
+        }
+        try {
+            // 最多扫两圈：第一圈清除访问标记，第二圈一定能淘汰到
+            long budget = 2L * map.size() + 1;
+            while (map.size() > maxSize && budget-- > 0) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = map.entrySet().iterator();
+                    if (!hand.hasNext()) {
+                        return;
+                    }
+                }
+                Map.Entry<String, Entry<V>> next = hand.next();
+                Entry<V> entry = next.getValue();
+                if (next.getKey().equals(justPut)) {
+                    continue;
+                }
+                if (entry.referenced && entry.expireAt >= System.currentTimeMillis()) {
+                    entry.referenced = false;
+                } else {
+                    map.remove(next.getKey(), entry);
+                }
+            }
+        } finally {
+            evictLock.unlock();
+        }
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long expireAt;
+        private volatile boolean referenced;
+
+        Entry(V value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.hmdp.utils;
+
+import java.util.Map;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 可被 /metrics 接口采集的指标来源，实现类注册为Spring Bean即可
+ */
+public interface MetricsSource {
+
+    // 指标分组的名字
+    String getMetricsName();
+
+    // 当前的指标快照
+    Map<String, Object> getMetrics();
+}
@@ -1,38 +1,159 @@
 package com.hmdp.utils;
 
+import com.hmdp.config.IdProperties;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
+
+import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Feg
  * @version 1.0
+ * 全局id：高32位是从2022-01-01开始的秒数，低32位是当天的序列号，序列号由redis中按天的计数器保证全局唯一
+ * segment模式下一次INCRBY租用一段序列号，在本地用原子计数器分配，用到一定比例时异步预取下一段
+ * 一段序列号只在租用它的那一天使用，跨天时丢弃，保证同一秒内不同节点的序列号不会重复
  */
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements IdGenerator {
 
     private static final Long BEGIN_TIMESTAMP = 1640995200L;
     private static final int LEFT_BITS  = 32;
+    private static final long SECONDS_PER_DAY = 86400;
+    private static final DateTimeFormatter DAY_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    // 时间戳按本地时区计算，和原来 LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) 的结果一致
+    private static final TimeZone ZONE = TimeZone.getDefault();
+
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     private StringRedisTemplate stringRedisTemplate;
+    private IdProperties idProperties;
+
+    // 业务前缀 -> 当前使用的号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
 
-    public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate, IdProperties idProperties) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.idProperties = idProperties;
     }
 
+    @Override
     public Long nextId(String keyPrefix){
         // 1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowTime = now.toEpochSecond(ZoneOffset.UTC);
+        long nowTime = localSeconds();
         long timestamp = nowTime - BEGIN_TIMESTAMP;
+        long day = Math.floorDiv(nowTime, SECONDS_PER_DAY);
         // 2.生成序列号
-        // 2.1 获取当天时间
-        String today = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        // 2.2 获取自增长的值
-        Long increment = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + today);
+        long sequence = idProperties.getMode() == IdProperties.Mode.SEGMENT
+                ? nextSegmentSequence(keyPrefix, day)
+                // 2.1 每个id自增一次当天的计数器
+                : stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, day));
         // 3.拼接
-        return timestamp << LEFT_BITS | increment;
+        return timestamp << LEFT_BITS | sequence;
+    }
+
+    private long nextSegmentSequence(String keyPrefix, long day) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.day == day) {
+                long sequence = segment.cursor.getAndIncrement();
+                if (sequence <= segment.end) {
+                    // 恰好有一个线程拿到预取点的序列号，由它触发预取
+                    if (sequence == segment.prefetchAt) {
+                        buffer.prefetch(day);
+                    }
+                    return sequence;
+                }
+            }
+            // 当前段用完了或者已经跨天，切换到下一段
+            buffer.switchSegment(segment, day);
+        }
+    }
+
+    // 租用一段序列号：INCRBY 计数器 step，返回 [end - step + 1, end]
+    private Segment lease(String keyPrefix, long day) {
+        IdProperties.Segment config = idProperties.getSegment();
+        int step = config.getStep();
+        Long end = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, day), step);
+        long start = end - step + 1;
+        long prefetchAt = end - (long) (step * config.getPrefetchRatio());
+        return new Segment(day, start, end, Math.max(start, prefetchAt));
+    }
+
+    private static String counterKey(String keyPrefix, long day) {
+        return "icr:" + keyPrefix + ":" + LocalDate.ofEpochDay(day).format(DAY_FORMATTER);
+    }
+
+    private static long localSeconds() {
+        long now = System.currentTimeMillis();
+        return (now + ZONE.getOffset(now)) / 1000;
+    }
+
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        // 正在预取或者已经预取好的下一段
+        private CompletableFuture<Segment> next;
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        synchronized void prefetch(long day) {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(() -> lease(keyPrefix, day), PREFETCH_EXECUTOR);
+            }
+        }
+
+        synchronized void switchSegment(Segment exhausted, long day) {
+            if (current != exhausted) {
+                // 其它线程已经切换过了
+                return;
+            }
+            Segment segment = null;
+            CompletableFuture<Segment> future = next;
+            next = null;
+            if (future != null) {
+                try {
+                    segment = future.get(idProperties.getSegment().getPrefetchWaitMs(), TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    log.warn("预取号段失败，同步租用", e);
+                }
+            }
+            // 预取的号段属于前一天时丢弃
+            if (segment == null || segment.day != day) {
+                segment = lease(keyPrefix, day);
+            }
+            current = segment;
+        }
+    }
+
+    private static class Segment {
+        private final long day;
+        private final AtomicLong cursor;
+        private final long end;
+        private final long prefetchAt;
+
+        Segment(long day, long start, long end, long prefetchAt) {
+            this.day = day;
+            this.cursor = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+        }
     }
 }
@@ -0,0 +1,234 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 逻辑过期缓存的提前刷新：CacheClient每次读取时记录key的访问和逻辑过期时间，后台按固定间隔扫描，
+ * 经常被读取、即将过期的key在过期之前交给重建线程池刷新，不必等到过期之后的第一次读取
+ * 刷新方式（加载函数、锁和过期时间）随每次读取一起记录在key上，同一个前缀下不同的调用方各自使用自己的刷新方式
+ * 访问次数按半衰期衰减，长时间没有读取的key不再跟踪，也就不会被刷新。跟踪的key数有上限
+ * 所有节点共用一个每秒的数据库查询预算，保存在redis中按秒计数，超出预算的key留到下一轮，申请到但没有用掉的预算还回去
+ */
+@Slf4j
+@Component
+public class RefreshAheadScheduler implements MetricsSource {
+
+    private static final String BUDGET_KEY_PREFIX = "cache:refresh:budget:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private CacheProperties cacheProperties;
+
+    // 缓存key -> 访问记录
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder agedOut = new LongAdder();
+    private final LongAdder refreshed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+    private volatile int lastDue;
+
+    private final ScheduledExecutorService scanExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cache-refresh-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        CacheProperties.RefreshAhead config = cacheProperties.getRefreshAhead();
+        if (!config.isEnabled()) {
+            return;
+        }
+        scanExecutor.scheduleWithFixedDelay(this::scan, config.getTickMs(), config.getTickMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        scanExecutor.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        return cacheProperties.getRefreshAhead().isEnabled();
+    }
+
+    // 记录一次读取，expireAt是读到的逻辑过期时间，refresher是这次读取的调用方刷新这个key的方式
+    public void track(String keyPrefix, String key, Object id, long expireAt, Refresher refresher) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            if (entries.size() >= cacheProperties.getRefreshAhead().getMaxKeys()) {
+                dropped.increment();
+                return;
+            }
+            entry = entries.computeIfAbsent(key, k -> new Entry(keyPrefix, id, System.currentTimeMillis()));
+        }
+        entry.hits.increment();
+        entry.refresher = refresher;
+        if (entry.expireAt != expireAt) {
+            entry.expireAt = expireAt;
+        }
+    }
+
+    private void scan() {
+        try {
+            CacheProperties.RefreshAhead config = cacheProperties.getRefreshAhead();
+            long now = System.currentTimeMillis();
+            double decay = Math.pow(0.5, (double) config.getTickMs() / config.getHalfLifeMs());
+            List<Map.Entry<String, Entry>> due = new ArrayList<>();
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> item = iterator.next();
+                Entry entry = item.getValue();
+                long hits = entry.hits.sumThenReset();
+                entry.score = entry.score * decay + hits;
+                if (hits > 0) {
+                    entry.lastAccess = now;
+                } else if (now - entry.lastAccess > config.getIdleMs()) {
+                    iterator.remove();
+                    agedOut.increment();
+                    continue;
+                }
+                long expireAt = entry.expireAt;
+                // 同一个过期时间只提交一次，刷新之后的新过期时间要等下次读取才知道
+                if (entry.score >= config.getMinScore() && expireAt != entry.scheduledFor
+                        && expireAt - now <= config.getAheadMs()) {
+                    due.add(item);
+                }
+            }
+            lastDue = due.size();
+            if (due.isEmpty()) {
+                return;
+            }
+            // 预算不够时先刷新访问最多的
+            due.sort((a, b) -> Double.compare(b.getValue().score, a.getValue().score));
+            long second = System.currentTimeMillis() / 1000;
+            int permits = acquireBudget(second, due.size(), config);
+            if (permits < due.size()) {
+                overBudget.add(due.size() - permits);
+            }
+            int used = 0;
+            for (int i = 0; i < permits; i++) {
+                String key = due.get(i).getKey();
+                Entry entry = due.get(i).getValue();
+                Refresher refresher = entry.refresher;
+                long expireAt = entry.expireAt;
+                if (refresher != null && refresher.refresh(key, entry.id, expireAt)) {
+                    entry.scheduledFor = expireAt;
+                    refreshed.increment();
+                    used++;
+                } else {
+                    rejected.increment();
+                }
+            }
+            if (used < permits) {
+                releaseBudget(second, permits - used);
+            }
+        } catch (Exception e) {
+            log.error("提前刷新缓存异常", e);
+        }
+    }
+
+    // 从second这一秒的全局预算里申请want个，返回实际得到的个数
+    private int acquireBudget(long second, int want, CacheProperties.RefreshAhead config) {
+        int perTick = (int) Math.max(1, (long) config.getMaxQps() * config.getTickMs() / 1000);
+        want = Math.min(want, perTick);
+        String key = BUDGET_KEY_PREFIX + second;
+        Long used = stringRedisTemplate.opsForValue().increment(key, want);
+        if (used == null) {
+            return 0;
+        }
+        if (used == want) {
+            stringRedisTemplate.expire(key, 2, TimeUnit.SECONDS);
+        }
+        long left = config.getMaxQps() - (used - want);
+        int granted = (int) Math.max(0, Math.min(want, left));
+        // 超出预算申请不到的部分也还回去，不占用其它节点的预算
+        if (granted < want) {
+            releaseBudget(second, want - granted);
+        }
+        return granted;
+    }
+
+    // 还回没有用掉的预算，同一秒内其它节点还可以使用
+    private void releaseBudget(long second, int permits) {
+        String key = BUDGET_KEY_PREFIX + second;
+        stringRedisTemplate.opsForValue().decrement(key, permits);
+        // key可能恰好过期，DECRBY会重新创建它，这里重新设置过期时间
+        stringRedisTemplate.expire(key, 2, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "cache-refresh-ahead";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("enabled", isEnabled());
+        map.put("tracked", entries.size());
+        Set<String> prefixes = new TreeSet<>();
+        entries.values().forEach(entry -> prefixes.add(entry.keyPrefix));
+        map.put("prefixes", prefixes);
+        map.put("lastDue", lastDue);
+        map.put("refreshed", refreshed.sum());
+        map.put("rejected", rejected.sum());
+        map.put("overBudget", overBudget.sum());
+        map.put("agedOut", agedOut.sum());
+        map.put("dropped", dropped.sum());
+        return map;
+    }
+
+    /**
+     * 按key异步刷新缓存
+     */
+    public interface Refresher {
+        /**
+         * @param observedExpireAt 扫描时看到的逻辑过期时间，redis中已经不是这个版本时不再查询数据库
+         * @return 是否提交成功，重建线程池满了或者这个key已经在重建时返回false
+         */
+        boolean refresh(String key, Object id, long observedExpireAt);
+    }
+
+    private static class Entry {
+        private final String keyPrefix;
+        private final Object id;
+        private final LongAdder hits = new LongAdder();
+        // 最近一次读取这个key的调用方的刷新方式
+        private volatile Refresher refresher;
+        private volatile long expireAt = CacheCodec.NO_EXPIRE;
+        // 以下字段只由扫描线程读写
+        private double score;
+        private long lastAccess;
+        private long scheduledFor;
+
+        Entry(String keyPrefix, Object id, long now) {
+            this.keyPrefix = keyPrefix;
+            this.id = id;
+            this.lastAccess = now;
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.pojo.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 本地队列模式下已受理订单的预写日志，保证lua脚本成功之后、写库提交之前JVM崩溃时订单不丢失
+ * 日志由若干个内存映射的分段文件组成，文件名是段内第一条记录的序号，每条记录固定32字节：
+ * 订单id、用户id、券id各8字节，记录类型4字节，校验和4字节
+ * 写库提交之后推进检查点，检查点之前的分段会被删除，启动时从检查点开始重放
+ */
+@Slf4j
+@Component
+public class SeckillOrderJournal implements MetricsSource {
+
+    private static final int RECORD_SIZE = 32;
+    private static final int TYPE_ACCEPTED = 1;
+    // 订单被写库通道拒绝、库存已经回滚，重放时需要跳过
+    private static final int TYPE_CANCELLED = 2;
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final long CHECKPOINT_MAGIC = 0x5345434B494C4CL;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    private Path dir;
+    private SeckillProperties.FsyncPolicy fsyncPolicy;
+    private volatile boolean opened;
+
+    // 下一条记录的序号，写入时先抢占序号再写对应的位置，写入本身不需要加锁
+    private final AtomicLong nextSeq = new AtomicLong();
+    // 抢占序号和登记为未提交在同一个锁里完成，计算检查点时不会看到已抢占、还没登记的序号
+    private final Object claimLock = new Object();
+    // 段内第一条记录的序号 -> 分段
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private volatile Segment current;
+
+    // 已写入日志、还没有写库提交的订单
+    private final Map<Long, Long> pendingSeqs = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<Long> pendingSet = new ConcurrentSkipListSet<>();
+    private volatile long checkpoint;
+    private MappedByteBuffer checkpointBuffer;
+
+    // 组提交：已开始和已完成的刷盘次数，写入后等到一次在写入之后开始的刷盘完成即可
+    private final AtomicLong forcesStarted = new AtomicLong();
+    private volatile long forcesCompleted;
+    private final Object forceLock = new Object();
+
+    private ScheduledExecutorService flushExecutor;
+
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private volatile long replayed;
+    private final LatencyHistogram forceLatency = new LatencyHistogram();
+
+    /**
+     * 打开日志，返回上次退出时还没有写库提交的订单，调用方需要把它们重新交给写库通道
+     */
+    public synchronized List<VoucherOrder> open() {
+        SeckillProperties.Journal journal = seckillProperties.getJournal();
+        this.dir = Paths.get(journal.getDir());
+        this.fsyncPolicy = journal.getFsyncPolicy();
+        List<VoucherOrder> recovered;
+        try {
+            Files.createDirectories(dir);
+            checkpointBuffer = map(dir.resolve(CHECKPOINT_FILE), 16);
+            long saved = checkpointBuffer.getLong(0);
+            checkpoint = (saved ^ CHECKPOINT_MAGIC) == checkpointBuffer.getLong(8) ? saved : 0;
+            recovered = replay();
+        } catch (IOException e) {
+            throw new UncheckedIOException("打开订单日志失败", e);
+        }
+        // 重放之后总是从一个新的分段开始写，旧分段里可能有崩溃时没写完的空洞
+        nextSeq.set(Math.max(nextSeq.get(), checkpoint));
+        current = createSegment(nextSeq.get());
+        writeCheckpoint(lowWaterMark());
+        flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "seckill-journal-flusher"));
+        flushExecutor.scheduleWithFixedDelay(this::flush, journal.getFsyncIntervalMs(),
+                journal.getFsyncIntervalMs(), TimeUnit.MILLISECONDS);
+        opened = true;
+        replayed = recovered.size();
+        log.info("订单日志已打开，检查点{}，重放{}个订单", checkpoint, recovered.size());
+        return recovered;
+    }
+
+    // 写入一个已受理的订单，按刷盘策略决定是否等待落盘
+    public void append(VoucherOrder voucherOrder) {
+        long seq = write(voucherOrder, TYPE_ACCEPTED);
+        pendingSeqs.put(voucherOrder.getId(), seq);
+        appended.increment();
+        if (fsyncPolicy == SeckillProperties.FsyncPolicy.ALWAYS) {
+            groupForce();
+        }
+    }
+
+    // 订单没有被写库通道接收，写一条取消记录，避免重放时重新下单
+    public void cancel(VoucherOrder voucherOrder) {
+        write(voucherOrder, TYPE_CANCELLED);
+        release(voucherOrder);
+        if (fsyncPolicy == SeckillProperties.FsyncPolicy.ALWAYS) {
+            groupForce();
+        }
+        cancelled.increment();
+    }
+
+    // 订单已经写库提交（或者因为重复下单、库存不足被丢弃），推进检查点
+    public void complete(Collection<VoucherOrder> voucherOrders) {
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            release(voucherOrder);
+        }
+        completed.add(voucherOrders.size());
+    }
+
+    public boolean isOpened() {
+        return opened;
+    }
+
+    private void release(VoucherOrder voucherOrder) {
+        Long seq = pendingSeqs.remove(voucherOrder.getId());
+        if (seq == null) {
+            return;
+        }
+        pendingSet.remove(seq);
+        writeCheckpoint(lowWaterMark());
+    }
+
+    // 检查点是最早一个还没提交的订单的序号，之前的记录都不再需要
+    private long lowWaterMark() {
+        synchronized (claimLock) {
+            Long first = pendingSet.ceiling(Long.MIN_VALUE);
+            return first == null ? nextSeq.get() : first;
+        }
+    }
+
+    private synchronized void writeCheckpoint(long seq) {
+        checkpoint = Math.max(seq, checkpoint);
+        // 检查点只写入映射内存，由刷盘线程定期落盘，丢失时只会多重放一些已提交的订单，写库时会去重
+        checkpointBuffer.putLong(0, checkpoint);
+        checkpointBuffer.putLong(8, checkpoint ^ CHECKPOINT_MAGIC);
+    }
+
+    private long write(VoucherOrder voucherOrder, int type) {
+        long seq;
+        synchronized (claimLock) {
+            seq = nextSeq.getAndIncrement();
+            if (type == TYPE_ACCEPTED) {
+                pendingSet.add(seq);
+            }
+        }
+        Segment segment = current;
+        if (!segment.contains(seq)) {
+            segment = roll(seq);
+        }
+        int offset = (int) (seq - segment.firstSeq) * RECORD_SIZE;
+        long id = voucherOrder.getId();
+        long userId = voucherOrder.getUserId();
+        long voucherId = voucherOrder.getVoucherId();
+        // 使用绝对位置写入，多个线程写不同的位置互不影响，校验和最后写
+        segment.buffer.putLong(offset, id);
+        segment.buffer.putLong(offset + 8, userId);
+        segment.buffer.putLong(offset + 16, voucherId);
+        segment.buffer.putInt(offset + 24, type);
+        segment.buffer.putInt(offset + 28, checksum(id, userId, voucherId, type));
+        return seq;
+    }
+
+    // 当前分段写满了，找到或者创建序号所在的分段
+    private synchronized Segment roll(long seq) {
+        // 抢占序号之后其它线程可能已经滚动了分段，序号在之前的分段里
+        Map.Entry<Long, Segment> entry = segments.floorEntry(seq);
+        if (entry != null && entry.getValue().contains(seq)) {
+            return entry.getValue();
+        }
+        Segment segment = current;
+        while (!segment.contains(seq)) {
+            Segment next = segments.get(segment.firstSeq + segment.capacity);
+            if (next == null) {
+                next = createSegment(segment.firstSeq + segment.capacity);
+            }
+            if (next.firstSeq > current.firstSeq) {
+                current = next;
+            }
+            segment = next;
+        }
+        return segment;
+    }
+
+    private Segment createSegment(long firstSeq) {
+        long capacity = Math.max(1, seckillProperties.getJournal().getSegmentBytes() / RECORD_SIZE);
+        Path path = dir.resolve(String.format("%020d", firstSeq) + SEGMENT_SUFFIX);
+        try {
+            Segment segment = new Segment(firstSeq, capacity, map(path, capacity * RECORD_SIZE));
+            segments.put(firstSeq, segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("创建订单日志分段失败", e);
+        }
+    }
+
+    // 多个等待落盘的线程共享一次刷盘
+    private void groupForce() {
+        long ticket = forcesStarted.get();
+        synchronized (forceLock) {
+            if (forcesCompleted > ticket) {
+                return;
+            }
+            forceAll();
+        }
+    }
+
+    private void forceAll() {
+        synchronized (forceLock) {
+            long begin = System.nanoTime();
+            long started = forcesStarted.incrementAndGet();
+            // 只有检查点之后的分段可能有没落盘的数据
+            for (Segment segment : segments.tailMap(segments.floorKey(Math.max(checkpoint, segments.firstKey()))).values()) {
+                segment.buffer.force();
+            }
+            forcesCompleted = started;
+            forceLatency.recordNanos(System.nanoTime() - begin);
+        }
+    }
+
+    // 刷盘线程：按间隔刷盘、检查点落盘、删除检查点之前的分段
+    private void flush() {
+        try {
+            if (fsyncPolicy == SeckillProperties.FsyncPolicy.INTERVAL) {
+                forceAll();
+            }
+            checkpointBuffer.force();
+            long safe = checkpoint;
+            for (Segment segment : segments.values()) {
+                if (segment == current || segment.firstSeq + segment.capacity > safe) {
+                    break;
+                }
+                segments.remove(segment.firstSeq);
+                Files.deleteIfExists(segment.path());
+            }
+        } catch (Exception e) {
+            log.error("订单日志刷盘异常", e);
+        }
+    }
+
+    // 从检查点开始读取所有分段，返回还没有提交、也没有取消的订单
+    private List<VoucherOrder> replay() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                files.add(path);
+            }
+        }
+        files.sort(null);
+        Map<Long, VoucherOrder> orders = new LinkedHashMap<>();
+        Map<Long, Long> seqs = new LinkedHashMap<>();
+        long maxSeq = -1;
+        for (Path path : files) {
+            String name = path.getFileName().toString();
+            long firstSeq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            long capacity = Files.size(path) / RECORD_SIZE;
+            if (firstSeq + capacity <= checkpoint) {
+                Files.deleteIfExists(path);
+                continue;
+            }
+            Segment segment = new Segment(firstSeq, capacity, map(path, capacity * RECORD_SIZE));
+            segments.put(firstSeq, segment);
+            // 并发写入时崩溃可能留下空洞，因此扫描整个分段，跳过校验失败的记录
+            for (long seq = Math.max(firstSeq, checkpoint); seq < firstSeq + capacity; seq++) {
+                int offset = (int) (seq - firstSeq) * RECORD_SIZE;
+                long id = segment.buffer.getLong(offset);
+                long userId = segment.buffer.getLong(offset + 8);
+                long voucherId = segment.buffer.getLong(offset + 16);
+                int type = segment.buffer.getInt(offset + 24);
+                if (id == 0 || segment.buffer.getInt(offset + 28) != checksum(id, userId, voucherId, type)) {
+                    continue;
+                }
+                maxSeq = Math.max(maxSeq, seq);
+                if (type == TYPE_CANCELLED) {
+                    orders.remove(id);
+                    seqs.remove(id);
+                    continue;
+                }
+                VoucherOrder voucherOrder = new VoucherOrder();
+                voucherOrder.setId(id);
+                voucherOrder.setUserId(userId);
+                voucherOrder.setVoucherId(voucherId);
+                orders.put(id, voucherOrder);
+                seqs.put(id, seq);
+            }
+        }
+        nextSeq.set(maxSeq + 1);
+        pendingSeqs.putAll(seqs);
+        pendingSet.addAll(seqs.values());
+        return new ArrayList<>(orders.values());
+    }
+
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // 映射在通道关闭之后仍然有效
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static int checksum(long id, long userId, long voucherId, int type) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        h = (h ^ userId) * 0x9E3779B97F4A7C15L;
+        h = (h ^ voucherId) * 0x9E3779B97F4A7C15L;
+        h = (h ^ type) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @PreDestroy
+    private void close() {
+        if (!opened) {
+            return;
+        }
+        flushExecutor.shutdownNow();
+        forceAll();
+        checkpointBuffer.force();
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "seckill-journal";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("opened", opened);
+        map.put("fsyncPolicy", fsyncPolicy);
+        map.put("nextSeq", nextSeq.get());
+        map.put("checkpoint", checkpoint);
+        map.put("pending", pendingSeqs.size());
+        map.put("segments", segments.size());
+        map.put("appended", appended.sum());
+        map.put("cancelled", cancelled.sum());
+        map.put("completed", completed.sum());
+        map.put("replayed", replayed);
+        map.put("forceLatencyUs", forceLatency.snapshot());
+        return map;
+    }
+
+    private class Segment {
+        private final long firstSeq;
+        private final long capacity;
+        private final MappedByteBuffer buffer;
+
+        Segment(long firstSeq, long capacity, MappedByteBuffer buffer) {
+            this.firstSeq = firstSeq;
+            this.capacity = capacity;
+            this.buffer = buffer;
+        }
+
+        boolean contains(long seq) {
+            return seq >= firstSeq && seq < firstSeq + capacity;
+        }
+
+        Path path() {
+            return dir.resolve(String.format("%020d", firstSeq) + SEGMENT_SUFFIX);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.pojo.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 异步下单的一条写库通道，一个队列加一个线程
+ * 订单按用户id分配到固定的通道，同一个用户的订单只会被一个线程顺序处理，因此不再需要按用户加分布式锁
+ * 请求线程通过无锁的环形缓冲区交付订单，缓冲区满时按配置的策略拒绝、限时等待或者溢出到无界队列
+ * 溢出队列不为空时新订单也进入溢出队列，排在已经溢出的订单后面，消费者先取缓冲区再取溢出队列，同一个用户的订单仍然按顺序处理
+ */
+@Slf4j
+public class SeckillOrderLane {
+
+    // 没有订单时消费者线程最长的阻塞时间，生产者写入时会提前唤醒
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final int index;
+    private final SeckillOrderRingBuffer ring;
+    // 溢出策略下缓冲区满时存放订单的无界队列
+    private final Queue<VoucherOrder> spill = new ConcurrentLinkedQueue<>();
+    private final SeckillProperties.Lane lane;
+    private final SeckillProperties.Batch batch;
+    // 处理一批订单的回调，批量关闭时每批只有一个订单
+    private final Consumer<List<VoucherOrder>> handler;
+    private final ExecutorService executor;
+
+    private final LongAdder orders = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    // 缓冲区满被拒绝的、等待过空位的、溢出到无界队列的订单数
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public SeckillOrderLane(int index, SeckillProperties.Lane lane, SeckillProperties.Batch batch, Consumer<List<VoucherOrder>> handler) {
+        this.index = index;
+        this.ring = new SeckillOrderRingBuffer(lane.getQueueCapacity());
+        this.lane = lane;
+        this.batch = batch;
+        this.handler = handler;
+        this.executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "seckill-order-lane-" + index));
+    }
+
+    // 根据用户id选择通道
+    public static int laneOf(Long userId, int laneCount) {
+        return Math.floorMod(Long.hashCode(userId), laneCount);
+    }
+
+    public void start() {
+        executor.submit(this::run);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 请求线程放入订单，缓冲区满时按配置的溢出策略处理
+     * @return 订单被拒绝时返回false，调用方需要回滚已经在redis中预扣的库存
+     */
+    public boolean offer(VoucherOrder voucherOrder) {
+        if (lane.getOverflowPolicy() == SeckillProperties.OverflowPolicy.SPILL && !spill.isEmpty()) {
+            spill(voucherOrder);
+            return true;
+        }
+        if (ring.offer(voucherOrder.getId(), voucherOrder.getUserId(), voucherOrder.getVoucherId())) {
+            return true;
+        }
+        switch (lane.getOverflowPolicy()) {
+            case BLOCK:
+                blocked.increment();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lane.getOfferTimeoutMs());
+                for (int attempt = 0; System.nanoTime() < deadline; attempt++) {
+                    SeckillOrderRingBuffer.backoff(attempt);
+                    if (ring.offer(voucherOrder.getId(), voucherOrder.getUserId(), voucherOrder.getVoucherId())) {
+                        return true;
+                    }
+                }
+                break;
+            case SPILL:
+                spill(voucherOrder);
+                return true;
+            default:
+                break;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    // 放入订单，缓冲区满了就一直等待，用于从消息队列搬运订单的线程，订单还在消息队列里，不需要拒绝
+    public void put(VoucherOrder voucherOrder) throws InterruptedException {
+        // 溢出队列里还有更早的订单时同样排到后面
+        if (!spill.isEmpty()) {
+            spill(voucherOrder);
+            return;
+        }
+        for (int attempt = 0; !ring.offer(voucherOrder.getId(), voucherOrder.getUserId(), voucherOrder.getVoucherId()); attempt++) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            SeckillOrderRingBuffer.backoff(attempt);
+        }
+    }
+
+    private void spill(VoucherOrder voucherOrder) {
+        spill.add(voucherOrder);
+        spilled.increment();
+        ring.signalConsumer();
+    }
+
+    public int size() {
+        return ring.size() + spill.size();
+    }
+
+    private void run() {
+        int maxSize = batch.isEnabled() ? batch.getSize() : 1;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<VoucherOrder> voucherOrders = new ArrayList<>(maxSize);
+                if (drain(voucherOrders, maxSize) == 0) {
+                    // 没有订单时阻塞等待，生产者写入后会唤醒
+                    ring.awaitNotEmpty(IDLE_PARK_NANOS);
+                    continue;
+                }
+                // 批量模式下，以第一个订单为起点攒批，攒够数量或者等够时间就一起写库
+                if (batch.isEnabled()) {
+                    drainBatch(voucherOrders, maxSize, batch.getLingerMs());
+                }
+                long begin = System.nanoTime();
+                handler.accept(voucherOrders);
+                latency.recordNanos(System.nanoTime() - begin);
+                orders.add(voucherOrders.size());
+                batches.increment();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.info("处理订单异常", e);
+            }
+        }
+    }
+
+    // 先取环形缓冲区里的订单，再取溢出队列里的
+    private int drain(List<VoucherOrder> voucherOrders, int maxElements) {
+        int count = ring.drainTo(voucherOrders, maxElements);
+        while (count < maxElements) {
+            VoucherOrder voucherOrder = spill.poll();
+            if (voucherOrder == null) {
+                break;
+            }
+            voucherOrders.add(voucherOrder);
+            count++;
+        }
+        return count;
+    }
+
+    private void drainBatch(List<VoucherOrder> voucherOrders, int batchSize, long lingerMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        while (voucherOrders.size() < batchSize) {
+            // 先把缓冲区里现成的订单一次性取走，不够再等待
+            drain(voucherOrders, batchSize - voucherOrders.size());
+            if (voucherOrders.size() >= batchSize) {
+                return;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            ring.awaitNotEmpty(remaining);
+        }
+    }
+
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("lane", index);
+        map.put("queued", ring.size());
+        map.put("capacity", ring.capacity());
+        map.put("occupancy", Math.round(ring.size() * 10000.0 / ring.capacity()) / 100.0);
+        map.put("spillQueued", spill.size());
+        map.put("orders", orders.sum());
+        map.put("batches", batches.sum());
+        map.put("rejected", rejected.sum());
+        map.put("blocked", blocked.sum());
+        map.put("spilled", spilled.sum());
+        map.put("handleLatencyUs", latency.snapshot());
+        return map;
+    }
+}
@@ -0,0 +1,111 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 异步下单写库链路的指标
+ */
+@Component
+public class SeckillOrderMetrics implements MetricsSource {
+
+    // 成功写入的批次数和订单数
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder orders = new LongAdder();
+    // 批量写库失败后退化为逐条处理的批次数
+    private final LongAdder fallbacks = new LongAdder();
+    // 因为重复下单或库存不足被丢弃的订单数
+    private final LongAdder dropped = new LongAdder();
+    // stream模式下确认的消息数、重新处理的pending消息数、启动时接管的消息数
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder pendingRetried = new LongAdder();
+    private final LongAdder claimed = new LongAdder();
+    // 超时未支付被取消的订单数
+    private final LongAdder cancelled = new LongAdder();
+    // 每批的订单数量分布
+    private final LatencyHistogram batchSize = new LatencyHistogram();
+    // 每批写库的耗时分布
+    private final LatencyHistogram batchLatency = new LatencyHistogram();
+    // 当前积压的订单数，由下单服务注册
+    private volatile LongSupplier backlog = () -> 0L;
+    // 等待支付超时的订单数，由下单服务注册
+    private volatile LongSupplier payTimeoutPending = () -> 0L;
+    // 各个写库通道的指标，由下单服务注册
+    private volatile Supplier<List<Map<String, Object>>> lanes = Collections::emptyList;
+
+    public void recordBatch(int size, long costNanos) {
+        batches.increment();
+        orders.add(size);
+        batchSize.record(size);
+        batchLatency.recordNanos(costNanos);
+    }
+
+    public void recordFallback() {
+        fallbacks.increment();
+    }
+
+    public void recordDropped(int count) {
+        dropped.add(count);
+    }
+
+    public void recordAcked(int count) {
+        acked.add(count);
+    }
+
+    public void recordPendingRetried(int count) {
+        pendingRetried.add(count);
+    }
+
+    public void recordClaimed(int count) {
+        claimed.add(count);
+    }
+
+    public void recordCancelled(int count) {
+        cancelled.add(count);
+    }
+
+    public void setPayTimeoutPending(LongSupplier payTimeoutPending) {
+        this.payTimeoutPending = payTimeoutPending;
+    }
+
+    public void setBacklog(LongSupplier backlog) {
+        this.backlog = backlog;
+    }
+
+    public void setLanes(Supplier<List<Map<String, Object>>> lanes) {
+        this.lanes = lanes;
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "seckill-order";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("backlog", backlog.getAsLong());
+        map.put("batches", batches.sum());
+        map.put("orders", orders.sum());
+        map.put("fallbacks", fallbacks.sum());
+        map.put("dropped", dropped.sum());
+        map.put("acked", acked.sum());
+        map.put("pendingRetried", pendingRetried.sum());
+        map.put("claimed", claimed.sum());
+        map.put("payTimeoutPending", payTimeoutPending.getAsLong());
+        map.put("cancelled", cancelled.sum());
+        map.put("batchSize", batchSize.snapshot());
+        map.put("batchLatencyUs", batchLatency.snapshot());
+        map.put("lanes", lanes.get());
+        return map;
+    }
+}
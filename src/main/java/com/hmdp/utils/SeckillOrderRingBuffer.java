@@ -0,0 +1,146 @@
+package com.hmdp.utils;
+
+import com.hmdp.pojo.entity.VoucherOrder;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 多生产者单消费者的无锁环形缓冲区，用于请求线程把订单交给写库通道
+ * 槽位在创建时一次性分配，订单的三个id直接写进槽位的long数组里，入队时不加锁也不创建对象
+ * 每个槽位有一个序号：序号等于写指针时可写，等于写指针+1时可读，消费者读完后把序号推进一圈
+ */
+public class SeckillOrderRingBuffer {
+
+    private final int capacity;
+    private final int mask;
+    private final long[] ids;
+    private final long[] userIds;
+    private final long[] voucherIds;
+    private final AtomicLongArray sequences;
+    // 生产者通过CAS抢占写指针
+    private final AtomicLong tail = new AtomicLong();
+    // 只有消费者线程修改读指针，volatile只是为了让其它线程统计占用量
+    private volatile long head;
+
+    // 消费者线程在等待新订单，生产者写入后需要唤醒它
+    private volatile boolean consumerWaiting;
+    private volatile Thread consumer;
+
+    public SeckillOrderRingBuffer(int capacity) {
+        // 容量向上取整为2的幂，下标用位运算计算
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.ids = new long[size];
+        this.userIds = new long[size];
+        this.voucherIds = new long[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * 尝试写入一个订单，任意线程可以调用
+     * @return 缓冲区已满时返回false
+     */
+    public boolean offer(long id, long userId, long voucherId) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) pos & mask;
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    ids[index] = id;
+                    userIds[index] = userId;
+                    voucherIds[index] = voucherId;
+                    // 推进序号即发布，消费者读到新序号时一定能看到上面写入的值
+                    sequences.set(index, pos + 1);
+                    signalConsumer();
+                    return true;
+                }
+            } else if (diff < 0) {
+                // 这个槽位上一圈的订单还没被消费，缓冲区满了
+                return false;
+            }
+            // diff > 0 说明写指针已被其它生产者推进，重新读取
+        }
+    }
+
+    /**
+     * 取出最多maxElements个订单放入集合，只能由消费者线程调用
+     * @return 取出的数量
+     */
+    public int drainTo(Collection<VoucherOrder> target, int maxElements) {
+        long pos = head;
+        int count = 0;
+        while (count < maxElements) {
+            int index = (int) pos & mask;
+            if (sequences.get(index) != pos + 1) {
+                break;
+            }
+            VoucherOrder voucherOrder = new VoucherOrder();
+            voucherOrder.setId(ids[index]);
+            voucherOrder.setUserId(userIds[index]);
+            voucherOrder.setVoucherId(voucherIds[index]);
+            target.add(voucherOrder);
+            // 把槽位交还给生产者，序号推进一圈，只需要保证前面的读不被重排到后面，不需要完整的内存屏障
+            sequences.lazySet(index, pos + capacity);
+            pos++;
+            count++;
+        }
+        head = pos;
+        return count;
+    }
+
+    /**
+     * 消费者线程等待新订单，最多等待nanos纳秒，可能被提前唤醒
+     */
+    public void awaitNotEmpty(long nanos) throws InterruptedException {
+        consumer = Thread.currentThread();
+        consumerWaiting = true;
+        // 设置等待标记之后再检查一次，避免生产者在检查和阻塞之间写入而丢失唤醒
+        if (isEmpty()) {
+            LockSupport.parkNanos(this, nanos);
+        }
+        consumerWaiting = false;
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    // 唤醒等待中的消费者，从缓冲区以外的地方交付订单时也需要调用
+    public void signalConsumer() {
+        if (consumerWaiting) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    // 缓冲区满时生产者让出CPU后重试，前几次只让出时间片，之后短暂休眠，避免和消费者抢CPU
+    public static void backoff(int attempt) {
+        if (attempt < 16) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+        }
+    }
+
+    public boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,198 @@
+package com.hmdp.utils;
+
+import com.hmdp.common.RedisConstants;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.pojo.dto.Result;
+import com.hmdp.pojo.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 秒杀订单的状态记录，保存在redis中，格式为 "状态:用户id"
+ * 已受理由秒杀脚本写入，已落库和失败由写库通道在事务提交之后写入，超时未支付被取消的订单记为已取消
+ * 回滚脚本归还库存时同时写入失败或已取消，不删除状态
+ * 查询支持长轮询：等待中的请求不占用tomcat线程，本节点写库时直接唤醒，其它节点写库的订单由一个线程定时批量检查
+ */
+@Slf4j
+@Component
+public class SeckillOrderStatus {
+
+    public static final int ACCEPTED = 1;
+    public static final int PERSISTED = 2;
+    public static final int FAILED = 3;
+    public static final int CANCELLED = 4;
+
+    private static final int MGET_CHUNK = 500;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    // 订单id -> 正在等待这个订单状态变化的请求
+    private final Map<Long, List<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService pollExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    @PostConstruct
+    private void init() {
+        long interval = seckillProperties.getStatus().getPollIntervalMs();
+        pollExecutor.scheduleWithFixedDelay(this::pollWaiters, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        pollExecutor.shutdownNow();
+    }
+
+    // 事务提交之后调用，写库成功的记为已落库，其余的记为失败，一个管道写完
+    public void markResult(Collection<VoucherOrder> processed, Collection<VoucherOrder> saved) {
+        Map<Long, Integer> statuses = new LinkedHashMap<>(processed.size() * 2);
+        for (VoucherOrder voucherOrder : processed) {
+            statuses.put(voucherOrder.getId(), FAILED);
+        }
+        for (VoucherOrder voucherOrder : saved) {
+            statuses.put(voucherOrder.getId(), PERSISTED);
+        }
+        write(processed, statuses);
+    }
+
+    // 超时未支付的订单已经取消
+    public void markCancelled(Collection<VoucherOrder> cancelled) {
+        Map<Long, Integer> statuses = new LinkedHashMap<>(cancelled.size() * 2);
+        for (VoucherOrder voucherOrder : cancelled) {
+            statuses.put(voucherOrder.getId(), CANCELLED);
+        }
+        write(cancelled, statuses);
+    }
+
+    private void write(Collection<VoucherOrder> voucherOrders, Map<Long, Integer> statuses) {
+        long ttl = seckillProperties.getStatus().getTtlSeconds();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                String value = statuses.get(voucherOrder.getId()) + ":" + voucherOrder.getUserId();
+                conn.setEx(RedisConstants.SECKILL_ORDER_STATUS_KEY + voucherOrder.getId(), ttl, value);
+            }
+            return null;
+        });
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            complete(voucherOrder.getId(), statuses.get(voucherOrder.getId()));
+        }
+    }
+
+    /**
+     * 查询订单状态，订单还在处理中时最多等待waitMs毫秒
+     * @param orderId 订单id
+     * @param userId 当前用户id，只能查询自己的订单
+     * @param waitMs 最长等待时间，0表示立即返回
+     * @return 异步的查询结果，状态变为已落库或失败时、或者等待超时时返回
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId, long waitMs) {
+        waitMs = Math.min(Math.max(waitMs, 0), seckillProperties.getStatus().getMaxWaitMs());
+        DeferredResult<Result> deferredResult = new DeferredResult<>(waitMs > 0 ? waitMs : null, () -> toResult(orderId, ACCEPTED));
+        String value = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId);
+        if (value == null || !userId.equals(parseUserId(value))) {
+            deferredResult.setResult(Result.fail("订单不存在或状态已过期"));
+            return deferredResult;
+        }
+        int status = parseStatus(value);
+        if (status != ACCEPTED || waitMs == 0) {
+            deferredResult.setResult(toResult(orderId, status));
+            return deferredResult;
+        }
+        List<DeferredResult<Result>> list = waiters.computeIfAbsent(orderId, k -> new CopyOnWriteArrayList<>());
+        list.add(deferredResult);
+        deferredResult.onCompletion(() -> removeWaiter(orderId, deferredResult));
+        // 登记之后再读一次，第一次读取和登记之间写入的结果不用等定时检查
+        value = stringRedisTemplate.opsForValue().get(RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId);
+        if (value == null) {
+            deferredResult.setResult(Result.fail("订单不存在或状态已过期"));
+        } else if (parseStatus(value) != ACCEPTED) {
+            complete(orderId, parseStatus(value));
+        }
+        return deferredResult;
+    }
+
+    private void removeWaiter(Long orderId, DeferredResult<Result> deferredResult) {
+        waiters.computeIfPresent(orderId, (k, list) -> {
+            list.remove(deferredResult);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    private void complete(Long orderId, int status) {
+        List<DeferredResult<Result>> list = waiters.remove(orderId);
+        if (list == null) {
+            return;
+        }
+        for (DeferredResult<Result> deferredResult : list) {
+            deferredResult.setResult(toResult(orderId, status));
+        }
+    }
+
+    // 批量检查在其它节点写库的订单
+    private void pollWaiters() {
+        try {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            List<Long> orderIds = new ArrayList<>(waiters.keySet());
+            for (int from = 0; from < orderIds.size(); from += MGET_CHUNK) {
+                List<Long> chunk = orderIds.subList(from, Math.min(from + MGET_CHUNK, orderIds.size()));
+                List<String> keys = new ArrayList<>(chunk.size());
+                for (Long orderId : chunk) {
+                    keys.add(RedisConstants.SECKILL_ORDER_STATUS_KEY + orderId);
+                }
+                List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+                if (values == null) {
+                    continue;
+                }
+                for (int i = 0; i < chunk.size(); i++) {
+                    String value = values.get(i);
+                    if (value != null && parseStatus(value) != ACCEPTED) {
+                        complete(chunk.get(i), parseStatus(value));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("检查订单状态异常", e);
+        }
+    }
+
+    private static Result toResult(Long orderId, int status) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("orderId", orderId);
+        map.put("status", status == PERSISTED ? "PERSISTED" : status == FAILED ? "FAILED"
+                : status == CANCELLED ? "CANCELLED" : "ACCEPTED");
+        return Result.ok(map);
+    }
+
+    private static int parseStatus(String value) {
+        return value.charAt(0) - '0';
+    }
+
+    private static Long parseUserId(String value) {
+        return Long.valueOf(value.substring(value.indexOf(':') + 1));
+    }
+}
@@ -0,0 +1,125 @@
+package com.hmdp.utils;
+
+import com.hmdp.common.RedisConstants;
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 本地的秒杀券售罄标记，售罄之后的请求直接在本地拒绝，不再执行lua脚本
+ * 售罄和补货通过redis的发布订阅广播到所有节点。标记只在一小段时间内有效，过期后会放一个请求去redis重新确认，
+ * 这样即使丢失了广播消息，或者补货和售罄消息的先后顺序乱了，错误的状态也只会持续很短的时间
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener, MetricsSource {
+
+    private static final String SOLD_OUT = "soldout:";
+    private static final String RESET = "reset:";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    // 优惠券id -> 售罄标记失效的时间戳
+    private final Map<Long, Long> soldOutUntil = new ConcurrentHashMap<>();
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder marked = new LongAdder();
+    private final LongAdder reset = new LongAdder();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    // 判断本地是否已经标记为售罄，是的话直接拒绝请求
+    public boolean isSoldOut(Long voucherId) {
+        if (!seckillProperties.getSoldOut().isEnabled()) {
+            return false;
+        }
+        Long until = soldOutUntil.get(voucherId);
+        if (until == null) {
+            return false;
+        }
+        if (until < System.currentTimeMillis()) {
+            // 标记过期，放行这一次请求去redis重新确认
+            soldOutUntil.remove(voucherId, until);
+            return false;
+        }
+        rejected.increment();
+        return true;
+    }
+
+    // lua脚本返回库存不足时调用，标记本地并通知其它节点
+    public void markSoldOut(Long voucherId) {
+        if (!seckillProperties.getSoldOut().isEnabled()) {
+            return;
+        }
+        // 本地已经标记过的不重复广播
+        if (mark(voucherId)) {
+            stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId);
+        }
+    }
+
+    // 库存补充之后调用，清除所有节点的售罄标记
+    public void reset(Long voucherId) {
+        soldOutUntil.remove(voucherId);
+        reset.increment();
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, RESET + voucherId);
+    }
+
+    private boolean mark(Long voucherId) {
+        long until = System.currentTimeMillis() + seckillProperties.getSoldOut().getRecheckMs();
+        Long previous = soldOutUntil.put(voucherId, until);
+        marked.increment();
+        return previous == null || previous < System.currentTimeMillis();
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (body.startsWith(SOLD_OUT)) {
+                mark(Long.valueOf(body.substring(SOLD_OUT.length())));
+            } else if (body.startsWith(RESET)) {
+                soldOutUntil.remove(Long.valueOf(body.substring(RESET.length())));
+            }
+        } catch (NumberFormatException e) {
+            log.error("无法识别的售罄广播消息: {}", body);
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "seckill-sold-out";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("soldOutVouchers", soldOutUntil.size());
+        map.put("rejected", rejected.sum());
+        map.put("marked", marked.sum());
+        map.put("reset", reset.sum());
+        return map;
+    }
+}
@@ -0,0 +1,300 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.common.RedisConstants;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.pojo.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 所有商铺id的布隆过滤器，查询缓存之前先判断，一定不存在的id直接返回，不再访问redis和数据库，也不会写入空值缓存
+ * 位图保存在redis中，每个节点在本地有一份副本：新增商铺时同步SETBIT并广播给其它节点；
+ * 定时由一个节点从数据库重建，写入redis后通知其它节点重新加载。本地副本加载完成之前不做拦截
+ * 新增的id同时记在redis的一个集合里，重建开始时清空，替换位图之后把集合中的id重新写入，避免重建期间新增的id被覆盖
+ */
+@Slf4j
+@Component
+public class ShopBloomFilter implements MessageListener, MetricsSource {
+
+    private static final String ADD = "add:";
+    private static final String RELOAD = "reload:";
+    private static final String INSTANCE_ID = UUID.randomUUID().toString(true);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private CacheProperties cacheProperties;
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private CacheClient cacheClient;
+
+    private volatile BloomFilter filter;
+    // 替换本地副本期间收到的新增id，替换之后补到新的过滤器里
+    private final Queue<String> recentAdds = new ConcurrentLinkedQueue<>();
+    private volatile boolean replacing;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder passed = new LongAdder();
+    private final LongAdder rebuilds = new LongAdder();
+    private volatile long lastRebuildMs;
+
+    private final ScheduledExecutorService rebuildExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shop-bloom-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        if (!cacheProperties.getBloom().isEnabled()) {
+            return;
+        }
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SHOP_BLOOM_CHANNEL));
+        cacheClient.registerFilter(RedisConstants.CACHE_SHOP_KEY, id -> mightContain(id.toString()));
+    }
+
+    // 项目启动后从redis加载，redis中没有时从数据库构建，之后定时重建
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!cacheProperties.getBloom().isEnabled()) {
+            return;
+        }
+        long interval = cacheProperties.getBloom().getRebuildIntervalMs();
+        rebuildExecutor.execute(() -> {
+            try {
+                if (!reload()) {
+                    rebuild();
+                }
+            } catch (Exception e) {
+                log.error("加载商铺布隆过滤器异常", e);
+            }
+        });
+        rebuildExecutor.scheduleWithFixedDelay(() -> {
+            try {
+                // 锁不主动释放，一个重建周期内只有一个节点重建
+                Boolean success = stringRedisTemplate.opsForValue()
+                        .setIfAbsent(RedisConstants.LOCK_SHOP_BLOOM_KEY, INSTANCE_ID, interval / 2, TimeUnit.MILLISECONDS);
+                if (Boolean.TRUE.equals(success)) {
+                    rebuild();
+                }
+            } catch (Exception e) {
+                log.error("重建商铺布隆过滤器异常", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rebuildExecutor.shutdownNow();
+    }
+
+    public boolean mightContain(String id) {
+        BloomFilter current = filter;
+        if (current == null || current.mightContain(id)) {
+            passed.increment();
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    // 新增商铺之后调用，更新redis中的位图并通知所有节点
+    public void add(Long id) {
+        if (!cacheProperties.getBloom().isEnabled()) {
+            return;
+        }
+        String key = id.toString();
+        // 先记录再SETBIT：重建读取集合之前没有记录的id，SETBIT一定落在替换之后的位图上
+        stringRedisTemplate.opsForSet().add(RedisConstants.SHOP_BLOOM_ADDS_KEY, key);
+        stringRedisTemplate.expire(RedisConstants.SHOP_BLOOM_ADDS_KEY,
+                cacheProperties.getBloom().getRebuildIntervalMs() * 2, TimeUnit.MILLISECONDS);
+        long[] indexes = putLocal(key);
+        if (indexes != null) {
+            setBits(Collections.singletonList(indexes));
+        }
+        stringRedisTemplate.opsForValue().increment(RedisConstants.SHOP_BLOOM_KEY + ":count");
+        stringRedisTemplate.convertAndSend(RedisConstants.SHOP_BLOOM_CHANNEL, ADD + key);
+    }
+
+    // 从数据库分页读取所有商铺id构建新的过滤器，写入redis并通知其它节点重新加载
+    public void rebuild() {
+        long begin = System.currentTimeMillis();
+        CacheProperties.Bloom config = cacheProperties.getBloom();
+        // 在查询数据库之前清空，之后提交的新增商铺一定会记录在集合里
+        stringRedisTemplate.delete(RedisConstants.SHOP_BLOOM_ADDS_KEY);
+        long count = shopMapper.selectCount(null);
+        replace(() -> {
+            BloomFilter next = new BloomFilter(Math.max(config.getExpectedInsertions(), count), config.getFpp());
+            long lastId = 0;
+            while (true) {
+                List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>().select("id")
+                        .gt("id", lastId).orderByAsc("id").last("LIMIT " + config.getPageSize()));
+                for (Shop shop : shops) {
+                    next.put(shop.getId().toString());
+                }
+                if (shops.size() < config.getPageSize()) {
+                    return next;
+                }
+                lastId = shops.get(shops.size() - 1).getId();
+            }
+        });
+        byte[] bytes = filter.toBytes();
+        String tmpKey = RedisConstants.SHOP_BLOOM_KEY + ":tmp:" + INSTANCE_ID;
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            byte[] rawTmpKey = tmpKey.getBytes(StandardCharsets.UTF_8);
+            connection.set(rawTmpKey, bytes);
+            connection.rename(rawTmpKey, RedisConstants.SHOP_BLOOM_KEY.getBytes(StandardCharsets.UTF_8));
+            return null;
+        });
+        // 重建期间其它节点的SETBIT写在旧的位图上，已经被RENAME覆盖，按新位图的大小重新写入
+        Set<String> adds = stringRedisTemplate.opsForSet().members(RedisConstants.SHOP_BLOOM_ADDS_KEY);
+        if (adds != null && !adds.isEmpty()) {
+            BloomFilter current = filter;
+            List<long[]> indexes = new ArrayList<>(adds.size());
+            for (String id : adds) {
+                indexes.add(current.put(id));
+            }
+            setBits(indexes);
+        }
+        stringRedisTemplate.opsForValue().set(RedisConstants.SHOP_BLOOM_KEY + ":count", String.valueOf(count));
+        stringRedisTemplate.convertAndSend(RedisConstants.SHOP_BLOOM_CHANNEL, RELOAD + INSTANCE_ID);
+        rebuilds.increment();
+        lastRebuildMs = System.currentTimeMillis() - begin;
+        log.info("重建商铺布隆过滤器，{}个id，{}字节，耗时{}毫秒", count, bytes.length, lastRebuildMs);
+    }
+
+    private void setBits(List<long[]> indexes) {
+        byte[] rawKey = RedisConstants.SHOP_BLOOM_KEY.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long[] item : indexes) {
+                for (long index : item) {
+                    connection.setBit(rawKey, BloomFilter.HEADER_BITS + index, true);
+                }
+            }
+            return null;
+        });
+    }
+
+    // 从redis加载位图，redis中没有或者格式不对时返回false
+    private boolean reload() {
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(RedisConstants.SHOP_BLOOM_KEY.getBytes(StandardCharsets.UTF_8)));
+        BloomFilter loaded = BloomFilter.fromBytes(bytes);
+        if (loaded == null) {
+            return false;
+        }
+        replace(() -> loaded);
+        return true;
+    }
+
+    // 替换本地副本，替换期间收到的新增id补到新的过滤器里，put是幂等的，重复补没有影响
+    private synchronized void replace(Supplier<BloomFilter> supplier) {
+        recentAdds.clear();
+        replacing = true;
+        try {
+            filter = supplier.get();
+        } finally {
+            replacing = false;
+        }
+        String id;
+        while ((id = recentAdds.poll()) != null) {
+            filter.put(id);
+        }
+    }
+
+    private long[] putLocal(String id) {
+        if (replacing) {
+            recentAdds.add(id);
+        }
+        BloomFilter current = filter;
+        if (current == null) {
+            return null;
+        }
+        long[] indexes = current.put(id);
+        // 替换恰好发生在上面两步之间时，新的过滤器里也加一次
+        BloomFilter latest = filter;
+        if (latest != current) {
+            latest.put(id);
+        }
+        return indexes;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (body.startsWith(ADD)) {
+            putLocal(body.substring(ADD.length()));
+        } else if (body.startsWith(RELOAD) && !body.equals(RELOAD + INSTANCE_ID)) {
+            // 在重建线程中加载，不阻塞消息监听线程
+            rebuildExecutor.execute(() -> {
+                try {
+                    reload();
+                } catch (Exception e) {
+                    log.error("加载商铺布隆过滤器异常", e);
+                }
+            });
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "shop-bloom";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        BloomFilter current = filter;
+        map.put("enabled", cacheProperties.getBloom().isEnabled());
+        map.put("loaded", current != null);
+        map.put("configuredFpp", cacheProperties.getBloom().getFpp());
+        if (current != null) {
+            String count = stringRedisTemplate.opsForValue().get(RedisConstants.SHOP_BLOOM_KEY + ":count");
+            long insertions = count == null ? 0 : Long.parseLong(count);
+            map.put("insertions", insertions);
+            map.put("expectedFpp", current.expectedFpp(insertions));
+            map.put("bits", current.getNumBits());
+            map.put("hashes", current.getNumHashes());
+            map.put("memoryBytes", current.getSizeInBytes());
+        }
+        map.put("rejected", rejected.sum());
+        map.put("passed", passed.sum());
+        map.put("rebuilds", rebuilds.sum());
+        map.put("lastRebuildMs", lastRebuildMs);
+        return map;
+    }
+}
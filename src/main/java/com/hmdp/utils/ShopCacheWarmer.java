@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.common.RedisConstants;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.pojo.entity.Shop;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 启动时把所有商铺写入逻辑过期的缓存，否则没有预热过的商铺会被 queryShopById 当作不存在
+ * 按id范围切分成多段，由有界的线程池并行地按id顺序分批读取，每批用一次pipeline写入，只写入redis中还不存在的key；
+ * 每个key的过期时间随机分散，避免同时过期。预热在ApplicationRunner中同步执行，启动流程在预热完成后才结束，
+ * 但tomcat此时已经开始接收请求，预热期间还没写入缓存的商铺查询不到，预热状态在 /metrics/shop-cache-warm-up 中查看
+ */
+@Slf4j
+@Component
+public class ShopCacheWarmer implements ApplicationRunner, MetricsSource {
+
+    @Resource
+    private ShopMapper shopMapper;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private CacheProperties cacheProperties;
+
+    private volatile String state = "PENDING";
+    private volatile long durationMs;
+    private final LongAdder warmed = new LongAdder();
+    private final LongAdder failedRanges = new LongAdder();
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!cacheProperties.getWarmUp().isEnabled()) {
+            state = "DISABLED";
+            return;
+        }
+        try {
+            warmUp();
+        } catch (Exception e) {
+            // 预热失败不影响启动，没有预热的商铺在下次写入时补上
+            state = "FAILED";
+            log.error("预热商铺缓存异常", e);
+        }
+    }
+
+    // 预热所有商铺，返回写入的商铺数
+    public long warmUp() throws InterruptedException {
+        CacheProperties.WarmUp config = cacheProperties.getWarmUp();
+        state = "RUNNING";
+        long begin = System.currentTimeMillis();
+        long before = warmed.sum();
+        List<Map<String, Object>> bounds = shopMapper.selectMaps(
+                new QueryWrapper<Shop>().select("MIN(id) AS min_id", "MAX(id) AS max_id"));
+        Map<String, Object> bound = bounds.isEmpty() ? null : bounds.get(0);
+        if (bound != null && bound.get("min_id") != null) {
+            long minId = ((Number) bound.get("min_id")).longValue();
+            long maxId = ((Number) bound.get("max_id")).longValue();
+            warmRanges(minId, maxId, config);
+        }
+        durationMs = System.currentTimeMillis() - begin;
+        long count = warmed.sum() - before;
+        state = failedRanges.sum() == 0 ? "DONE" : "PARTIAL";
+        log.info("预热商铺缓存{}个，耗时{}毫秒", count, durationMs);
+        return count;
+    }
+
+    // 每个线程分到4段左右，段之间的数据量不均匀时也能互相平衡
+    private void warmRanges(long minId, long maxId, CacheProperties.WarmUp config) throws InterruptedException {
+        int parallelism = config.getParallelism();
+        int rangeCount = parallelism * 4;
+        long step = Math.max(1, (maxId - minId + rangeCount) / rangeCount);
+        AtomicInteger index = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism,
+                r -> new Thread(r, "shop-cache-warmer-" + index.incrementAndGet()));
+        try {
+            List<Future<?>> futures = new ArrayList<>(rangeCount);
+            for (long from = minId; from <= maxId; from += step) {
+                long start = from;
+                long end = Math.min(maxId, from + step - 1);
+                futures.add(pool.submit(() -> warmRange(start, end, config)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failedRanges.increment();
+                    log.error("预热商铺缓存的一段失败", e.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // 按id顺序分批读取 [from, to] 范围内的商铺
+    private void warmRange(long from, long to, CacheProperties.WarmUp config) {
+        long lastId = from - 1;
+        while (true) {
+            List<Shop> shops = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .gt("id", lastId).le("id", to).orderByAsc("id").last("LIMIT " + config.getChunkSize()));
+            if (shops.isEmpty()) {
+                return;
+            }
+            Map<String, Object> values = new LinkedHashMap<>(shops.size() * 2);
+            for (Shop shop : shops) {
+                values.put(RedisConstants.CACHE_SHOP_KEY + shop.getId(), shop);
+            }
+            cacheClient.setBatchWithLogicalExpire(values, RedisConstants.LOCK_SHOP_TTL, TimeUnit.SECONDS,
+                    config.getTtlSpreadRatio(), false);
+            warmed.add(shops.size());
+            if (shops.size() < config.getChunkSize()) {
+                return;
+            }
+            lastId = shops.get(shops.size() - 1).getId();
+        }
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "shop-cache-warm-up";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("state", state);
+        map.put("warmed", warmed.sum());
+        map.put("durationMs", durationMs);
+        map.put("failedRanges", failedRanges.sum());
+        return map;
+    }
+}
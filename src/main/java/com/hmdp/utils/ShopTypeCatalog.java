@@ -0,0 +1,180 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.common.RedisConstants;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.mapper.ShopTypeMapper;
+import com.hmdp.pojo.dto.Result;
+import com.hmdp.pojo.entity.ShopType;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 商铺类型目录：数据很少、几乎不变，整体作为一个不可变的快照放在内存里，连同序列化好的响应一起替换
+ * 快照带着版本号，版本号保存在redis中。修改类型之后调用 refresh 增加版本号并广播，所有节点重新从数据库加载；
+ * 后台还会定时检查版本号，兜底丢失的广播。查询接口只读内存中的快照，稳定状态下不访问redis
+ * IShopTypeService 的 save、updateById、removeById 成功后会调用 refresh；直接修改数据库中的 tb_shop_type 之后，
+ * 需要手动执行 INCR type:shop:version，各节点在下一次检查版本号时重新加载
+ */
+@Slf4j
+@Component
+public class ShopTypeCatalog implements MessageListener, MetricsSource {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    @Resource
+    private CacheProperties cacheProperties;
+    @Resource
+    private ShopTypeMapper shopTypeMapper;
+    @Resource
+    private ObjectMapper objectMapper;
+    @Resource
+    private CacheMetrics cacheMetrics;
+
+    private volatile Snapshot snapshot;
+
+    private final LongAdder loads = new LongAdder();
+
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shop-type-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_TYPE_CHANNEL));
+        long interval = cacheProperties.getTypeCatalog().getVersionCheckMs();
+        refreshExecutor.scheduleWithFixedDelay(this::checkVersion, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refreshExecutor.shutdownNow();
+    }
+
+    // 按sort排好序的类型列表，列表和其中的对象都是共享的，调用方不要修改
+    public List<ShopType> getTypes() {
+        return current().types;
+    }
+
+    // 序列化好的 Result.ok(类型列表)
+    public byte[] getResponseBody() {
+        return current().body;
+    }
+
+    // 修改数据库中的商铺类型之后调用，通知所有节点重新加载
+    public void refresh() {
+        stringRedisTemplate.opsForValue().increment(RedisConstants.CACHE_TYPE_VERSION_KEY);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_TYPE_CHANNEL, "refresh");
+    }
+
+    private Snapshot current() {
+        Snapshot current = snapshot;
+        if (current != null) {
+            cacheMetrics.of(RedisConstants.CACHE_TYPE_KEY).localHit();
+            return current;
+        }
+        // 还没有加载过，第一个请求同步加载
+        synchronized (this) {
+            if (snapshot == null) {
+                cacheMetrics.of(RedisConstants.CACHE_TYPE_KEY).localMiss();
+                load(readVersion());
+            }
+            return snapshot;
+        }
+    }
+
+    private void checkVersion() {
+        try {
+            long version = readVersion();
+            Snapshot current = snapshot;
+            if (current == null || current.version != version) {
+                synchronized (this) {
+                    load(version);
+                }
+            }
+        } catch (Exception e) {
+            log.error("检查商铺类型版本异常", e);
+        }
+    }
+
+    // 先读版本号再查数据库，查询期间版本号又变了的话下次检查时会再加载一次
+    private long readVersion() {
+        String version = stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_TYPE_VERSION_KEY);
+        return version == null ? 0 : Long.parseLong(version);
+    }
+
+    private void load(long version) {
+        long begin = System.nanoTime();
+        List<ShopType> types = shopTypeMapper.selectList(new QueryWrapper<ShopType>().orderByAsc("sort", "id"));
+        cacheMetrics.of(RedisConstants.CACHE_TYPE_KEY).dbLoad(System.nanoTime() - begin);
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(Result.ok(types));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("序列化商铺类型失败", e);
+        }
+        snapshot = new Snapshot(version, Collections.unmodifiableList(types), body);
+        loads.increment();
+        log.debug("加载商铺类型，版本 {}，共 {} 个", version, types.size());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        // 不在监听线程里查数据库
+        refreshExecutor.execute(this::checkVersion);
+    }
+
+    @Override
+    public String getMetricsName() {
+        return "shop-type";
+    }
+
+    @Override
+    public Map<String, Object> getMetrics() {
+        Snapshot current = snapshot;
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("loaded", current != null);
+        map.put("version", current == null ? null : current.version);
+        map.put("types", current == null ? 0 : current.types.size());
+        map.put("bodyBytes", current == null ? 0 : current.body.length);
+        map.put("loads", loads.sum());
+        return map;
+    }
+
+    private static class Snapshot {
+        private final long version;
+        private final List<ShopType> types;
+        private final byte[] body;
+
+        Snapshot(long version, List<ShopType> types, byte[] body) {
+            this.version = version;
+            this.types = types;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import com.hmdp.config.IdProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 雪花算法id：41位从2022-01-01开始的毫秒数，10位worker id，12位毫秒内序列号，每个节点每毫秒最多4096个
+ * worker id在启动时从redis租用，后台定时续约，生成id完全在本地，不访问redis
+ * 原子变量里保存的就是上一次生成的id，时间戳、worker id和序列号一起用CAS推进，逻辑时钟只增不减：时钟回拨时沿用上一次的时间戳继续递增，
+ * 因此不会产生重复的id；一毫秒内序列号用完时等待系统时钟前进，回拨太大时才借用未来的毫秒
+ */
+@Slf4j
+@Primary
+@Component
+@ConditionalOnProperty(prefix = "hmdp.id", name = "generator", havingValue = "snowflake")
+public class SnowflakeIdGenerator implements IdGenerator {
+
+    private static final long BEGIN_TIMESTAMP_MS = 1640995200000L;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int WORKER_BITS = 10;
+    private static final long MAX_WORKER_ID = (1L << WORKER_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int TIMESTAMP_SHIFT = WORKER_BITS + SEQUENCE_BITS;
+    private static final long WORKER_MASK = ((1L << WORKER_BITS) - 1) << SEQUENCE_BITS;
+
+    private static final String WORKER_KEY_PREFIX = "id:worker:";
+    // 每个worker id最后使用的逻辑时间戳，重新租到同一个worker id时从这个时间之后开始
+    private static final String WORKER_LAST_KEY = "id:worker:last";
+    private static final String INSTANCE_ID = UUID.randomUUID().toString(true);
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lua/worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private IdProperties idProperties;
+
+    // 上一次生成的id：高位是逻辑时间戳（相对起始时间的毫秒数），中间10位是worker id，低12位是序列号
+    // 重新租用worker id时和时间戳一起替换，生成id时从同一个快照里读取worker id
+    private final AtomicLong state = new AtomicLong();
+    private volatile long workerId = -1;
+    // 租约在本地的有效期，超过后拒绝生成id，避免和接手这个worker id的节点重复
+    private volatile long leaseDeadline;
+
+    private final ScheduledExecutorService renewExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "id-worker-renew");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        acquireWorkerId();
+        long interval = idProperties.getSnowflake().getLeaseTtlMs() / 3;
+        renewExecutor.scheduleWithFixedDelay(this::renew, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        renewExecutor.shutdownNow();
+        saveLastTimestamp();
+        stringRedisTemplate.delete(WORKER_KEY_PREFIX + workerId);
+    }
+
+    @Override
+    public Long nextId(String keyPrefix) {
+        long now = System.currentTimeMillis();
+        if (!isAvailable()) {
+            throw new IllegalStateException("worker id租约已过期，暂停生成id");
+        }
+        long timestamp = now - BEGIN_TIMESTAMP_MS;
+        long maxBackwardMs = idProperties.getSnowflake().getMaxBackwardMs();
+        while (true) {
+            long current = state.get();
+            long last = current >>> TIMESTAMP_SHIFT;
+            long worker = current & WORKER_MASK;
+            long next;
+            if (timestamp > last) {
+                // 时钟前进时序列号从0开始
+                next = timestamp << TIMESTAMP_SHIFT | worker;
+            } else if ((current & SEQUENCE_MASK) < SEQUENCE_MASK) {
+                next = current + 1;
+            } else if (last + 1 - timestamp <= maxBackwardMs) {
+                // 这一毫秒的序列号用完了，等系统时钟走到下一毫秒，避免逻辑时钟越跑越快
+                timestamp = System.currentTimeMillis() - BEGIN_TIMESTAMP_MS;
+                continue;
+            } else {
+                // 回拨超过maxBackwardMs时不再等待，继续借用未来的毫秒
+                next = (last + 1) << TIMESTAMP_SHIFT | worker;
+            }
+            if (state.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    // 租约是否有效，无效时 nextId 会抛出异常，调用方可以提前检查
+    public boolean isAvailable() {
+        return System.currentTimeMillis() <= leaseDeadline;
+    }
+
+    public long getWorkerId() {
+        return workerId;
+    }
+
+    // 从随机位置开始找一个空闲的worker id，SET NX PX 占用
+    private void acquireWorkerId() {
+        long ttl = idProperties.getSnowflake().getLeaseTtlMs();
+        long start = ThreadLocalRandom.current().nextLong(MAX_WORKER_ID + 1);
+        for (long i = 0; i <= MAX_WORKER_ID; i++) {
+            long candidate = (start + i) & MAX_WORKER_ID;
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(WORKER_KEY_PREFIX + candidate, INSTANCE_ID, ttl, TimeUnit.MILLISECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                long leasedAt = System.currentTimeMillis();
+                // 上一个使用这个worker id的节点可能把逻辑时钟推到了未来，从它之后开始
+                Object saved = stringRedisTemplate.opsForHash().get(WORKER_LAST_KEY, String.valueOf(candidate));
+                long lastTimestamp = saved == null ? 0 : Long.parseLong(saved.toString());
+                // 时间戳和worker id一起替换，之后生成的id都使用新的worker id
+                state.updateAndGet(current -> Math.max(current >>> TIMESTAMP_SHIFT, lastTimestamp + 1) << TIMESTAMP_SHIFT
+                        | candidate << SEQUENCE_BITS);
+                workerId = candidate;
+                leaseDeadline = leasedAt + ttl;
+                log.info("租用worker id {}", candidate);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的worker id");
+    }
+
+    // 续约租约并保存逻辑时间戳，租约丢失时重新租用一个worker id
+    private void renew() {
+        try {
+            long ttl = idProperties.getSnowflake().getLeaseTtlMs();
+            long renewAt = System.currentTimeMillis();
+            Long result = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Collections.singletonList(WORKER_KEY_PREFIX + workerId), INSTANCE_ID, String.valueOf(ttl));
+            saveLastTimestamp();
+            if (result != null && result == 1) {
+                leaseDeadline = renewAt + ttl;
+            } else {
+                log.warn("worker id {} 的租约已经丢失，重新租用", workerId);
+                acquireWorkerId();
+            }
+            long backward = (state.get() >>> TIMESTAMP_SHIFT) - (System.currentTimeMillis() - BEGIN_TIMESTAMP_MS);
+            if (backward > idProperties.getSnowflake().getMaxBackwardMs()) {
+                log.warn("逻辑时钟领先系统时钟{}毫秒，可能发生了时钟回拨", backward);
+            }
+        } catch (Exception e) {
+            log.error("续约worker id异常", e);
+        }
+    }
+
+    private void saveLastTimestamp() {
+        stringRedisTemplate.opsForHash().put(WORKER_LAST_KEY, String.valueOf(workerId),
+                String.valueOf(state.get() >>> TIMESTAMP_SHIFT));
+    }
+}
@@ -0,0 +1,76 @@
+package com.hmdp.utils;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 用Space-Saving算法统计访问最多的key，最多跟踪capacity个key，内存固定
+ * 新key在表满时替换计数最小的key，并继承它的计数，所以计数是上界，error是可能多算的部分
+ * 每sampleRate次访问只记录一次，按sampleRate累加，减少热点路径上的加锁
+ */
+public class TopKeys {
+
+    private final int capacity;
+    private final int sampleRate;
+    private final Map<String, long[]> counters;
+
+    public TopKeys(int capacity, int sampleRate) {
+        this.capacity = capacity;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.counters = new HashMap<>(capacity * 2);
+    }
+
+    public void record(String key) {
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        synchronized (this) {
+            long[] counter = counters.get(key);
+            if (counter != null) {
+                counter[0] += sampleRate;
+                return;
+            }
+            if (counters.size() < capacity) {
+                counters.put(key, new long[]{sampleRate, 0});
+                return;
+            }
+            // 替换计数最小的key
+            String minKey = null;
+            long[] min = null;
+            for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+                if (min == null || entry.getValue()[0] < min[0]) {
+                    minKey = entry.getKey();
+                    min = entry.getValue();
+                }
+            }
+            counters.remove(minKey);
+            counters.put(key, new long[]{min[0] + sampleRate, min[0]});
+        }
+    }
+
+    // 按计数从大到小返回前limit个key，limit不是正数时返回空列表
+    public List<Map<String, Object>> top(int limit) {
+        List<Map.Entry<String, long[]>> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(counters.size());
+            counters.forEach((key, counter) -> entries.add(new AbstractMap.SimpleEntry<>(key, counter.clone())));
+        }
+        entries.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+        List<Map<String, Object>> result = new ArrayList<>(Math.max(0, Math.min(limit, entries.size())));
+        for (int i = 0; i < entries.size() && i < limit; i++) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", entries.get(i).getKey());
+            item.put("count", entries.get(i).getValue()[0]);
+            item.put("error", entries.get(i).getValue()[1]);
+            result.add(item);
+        }
+        return result;
+    }
+}
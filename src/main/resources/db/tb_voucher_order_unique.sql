@@ -0,0 +1,9 @@
+-- ----------------------------
+-- 已有数据库的升级脚本：为 tb_voucher_order 增加 (user_id, voucher_id) 唯一索引，由数据库保证一人一单
+-- 建索引前先删除历史上的重复订单，每个用户每张券只保留id最小的一条
+-- ----------------------------
+DELETE o1 FROM `tb_voucher_order` o1
+  JOIN `tb_voucher_order` o2
+    ON o1.`user_id` = o2.`user_id` AND o1.`voucher_id` = o2.`voucher_id` AND o1.`id` > o2.`id`;
+
+ALTER TABLE `tb_voucher_order` ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE;
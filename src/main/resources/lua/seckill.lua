@@ -2,20 +2,72 @@
 --- Generated by EmmyLua(https://github.com/EmmyLua)
 --- Created by 18270.
 --- DateTime: 2022/10/22 16:50
---- 执行判断库存、判断是否已下单、减库存、添加订单功能
+--- 执行判断秒杀时间、判断库存、判断是否已下单、减库存、添加订单功能
+--- 返回值 0：成功 1：库存不足 2：重复下单 3：秒杀未开始 4：秒杀已结束 5：秒杀券不存在
 ---
 local voucherId = ARGV[1]
 local userId = ARGV[2]
+-- 订单id和订单消息队列的key，key为空字符串时不写消息队列
+local orderId = ARGV[3]
+local streamKey = ARGV[4]
+-- 当前时间的毫秒数
+local now = tonumber(ARGV[5])
+-- 订单状态记录的保留秒数
+local statusTtl = ARGV[6]
 
 local stockKey = 'seckill:stock:' .. voucherId
 local orderKey = 'seckill:order:' .. voucherId
 
-if (tonumber(redis.call('get',stockKey)) <= 0) then
-    return 1;
+-- 秒杀券的元数据由启动时的预热任务和新增秒杀券时写入：开始时间、结束时间、库存的段数
+local meta = redis.call('hmget','seckill:voucher:' .. voucherId,'begin','end','segments')
+if (meta[1] == false or meta[2] == false) then
+    return 5;
 end
-if (redis.call('sismember',orderKey,userId) == 1) then
+if (now < tonumber(meta[1])) then
+    return 3;
+end
+if (now > tonumber(meta[2])) then
+    return 4;
+end
+local segments = tonumber(meta[3]) or 1
+
+-- 在同一个脚本里把订单发送到消息队列，扣减库存和订单入队要么都成功要么都不做
+-- 同时写入"已受理"的订单状态，格式为 状态:用户id
+local function sendOrder()
+    if (streamKey ~= nil and streamKey ~= '') then
+        redis.call('xadd',streamKey,'*','userId',userId,'voucherId',voucherId,'id',orderId)
+    end
+    redis.call('set','order:status:' .. orderId,'1:' .. userId,'EX',statusTtl)
+end
+
+if (segments <= 1) then
+    -- 库存key不存在时按库存不足处理
+    if ((tonumber(redis.call('get',stockKey)) or 0) <= 0) then
+        return 1;
+    end
+    if (redis.call('sismember',orderKey,userId) == 1) then
+        return 2;
+    end
+    redis.call('incrby',stockKey,-1)
+    redis.call('sadd',orderKey,userId)
+    sendOrder()
+    return 0
+end
+
+-- 分段库存：用户固定属于按用户id取模得到的段，下单记录只放在这个段的集合里，保证一人一单是精确的
+local home = tonumber(userId) % segments
+local segmentOrderKey = orderKey .. ':' .. home
+if (redis.call('sismember',segmentOrderKey,userId) == 1) then
     return 2;
 end
-redis.call('incrby',stockKey,-1)
-redis.call('sadd',orderKey,userId)
-return 0
\ No newline at end of file
+-- 先扣自己所在段的库存，扣完了再依次尝试后面的段
+for i = 0, segments - 1 do
+    local segmentStockKey = stockKey .. ':' .. ((home + i) % segments)
+    if ((tonumber(redis.call('get',segmentStockKey)) or 0) > 0) then
+        redis.call('incrby',segmentStockKey,-1)
+        redis.call('sadd',segmentOrderKey,userId)
+        sendOrder()
+        return 0
+    end
+end
+return 1
@@ -0,0 +1,28 @@
+---
+--- 回滚秒杀脚本对一个订单做的修改：归还库存、删除下单记录，用于写库通道拒绝的订单和超时未支付被取消的订单
+--- 订单状态改为调用方传入的终态（失败或已取消），不直接删除，等待中的查询能看到结果
+--- 分段库存时库存归还到用户所在的段，总库存不变
+--- 返回值 0：已回滚 1：没有找到下单记录，不需要回滚
+---
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+local orderId = ARGV[3]
+local status = ARGV[4]
+local statusTtl = ARGV[5]
+
+local stockKey = 'seckill:stock:' .. voucherId
+local orderKey = 'seckill:order:' .. voucherId
+
+local segments = tonumber(redis.call('hget','seckill:voucher:' .. voucherId,'segments')) or 1
+if (segments > 1) then
+    local home = tonumber(userId) % segments
+    stockKey = stockKey .. ':' .. home
+    orderKey = orderKey .. ':' .. home
+end
+-- 下单记录存在才归还库存，保证重复回滚时不会多还
+if (redis.call('srem',orderKey,userId) == 0) then
+    return 1
+end
+redis.call('incrby',stockKey,1)
+redis.call('set','order:status:' .. orderId,status .. ':' .. userId,'EX',statusTtl)
+return 0
@@ -0,0 +1,8 @@
+---
+--- 续约worker id：只有租约仍然属于自己时才延长过期时间
+--- 返回值 1：续约成功 0：租约已经丢失
+---
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('pexpire', KEYS[1], ARGV[2])
+end
+return 0
@@ -1,19 +1,48 @@
 package com.hmdp;
 
 import com.hmdp.common.RedisConstants;
+import com.hmdp.config.IdProperties;
 import com.hmdp.pojo.entity.Shop;
+import com.hmdp.pojo.entity.VoucherOrder;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.LatencyHistogram;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.ShopCacheWarmer;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.jdbc.core.JdbcTemplate;
 
 import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+@Slf4j
 @SpringBootTest
 class HmDianPingApplicationTests {
 
@@ -23,6 +52,12 @@ class HmDianPingApplicationTests {
     private ShopServiceImpl shopService;
     @Resource
     private RedisIdWorker redisIdWorker;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private JdbcTemplate jdbcTemplate;
+    @Resource
+    private ShopCacheWarmer shopCacheWarmer;
 
     private ExecutorService es = Executors.newFixedThreadPool(500);
     @Test
@@ -31,24 +66,270 @@ class HmDianPingApplicationTests {
         cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY,shop,10L, TimeUnit.MINUTES);
     }
 
+    // 对比每个id一次INCR和号段模式的吞吐量、单次耗时，并检查id没有重复，需要redis，手动运行
+    @Disabled("压测，需要redis，手动运行")
     @Test
     void testId() throws InterruptedException {
-        CountDownLatch downLatch = new CountDownLatch(300);
-        Runnable task = () -> {
-            for (int i = 0; i < 100; i++) {
-                Long id = redisIdWorker.nextId("order");
-                System.out.println("id=" + id);
-            }
-            downLatch.countDown();
-        };
+        for (IdProperties.Mode mode : IdProperties.Mode.values()) {
+            IdProperties properties = new IdProperties();
+            properties.setMode(mode);
+            RedisIdWorker worker = new RedisIdWorker(stringRedisTemplate, properties);
+            int threads = 300;
+            int perThread = 1000;
+            Set<Long> ids = ConcurrentHashMap.newKeySet(threads * perThread);
+            LatencyHistogram latency = new LatencyHistogram();
+            CountDownLatch downLatch = new CountDownLatch(threads);
+            Runnable task = () -> {
+                for (int i = 0; i < perThread; i++) {
+                    long begin = System.nanoTime();
+                    Long id = worker.nextId("order");
+                    latency.recordNanos(System.nanoTime() - begin);
+                    ids.add(id);
+                }
+                downLatch.countDown();
+            };
+            long begin = System.currentTimeMillis();
+            for (int i = 0; i < threads; i++) {
+                es.submit(task);
+            }
+            downLatch.await();
+            long time = System.currentTimeMillis() - begin;
+            log.info("mode={}, time={}ms, qps={}, latencyUs={}", mode, time, threads * perThread * 1000L / Math.max(time, 1),
+                    latency.snapshot());
+            Assertions.assertEquals(threads * perThread, ids.size());
+        }
+    }
+
+    // 对比本地阻塞队列和redis stream的下单吞吐量，需要redis，手动运行
+    @Disabled("压测，需要redis，手动运行")
+    @Test
+    void testOrderQueueThroughput() throws InterruptedException {
+        int producers = 8;
+        int perProducer = 5000;
+        int total = producers * perProducer;
+
+        // 本地阻塞队列：多个线程入队，一个线程批量取出
+        BlockingQueue<VoucherOrder> queue = new ArrayBlockingQueue<>(1024 * 1024);
+        CountDownLatch queueLatch = new CountDownLatch(producers);
         long begin = System.currentTimeMillis();
-        for (int i = 0; i < 300; i++) {
-            es.submit(task);
+        for (int p = 0; p < producers; p++) {
+            es.submit(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    queue.add(new VoucherOrder().setId((long) i).setUserId((long) i).setVoucherId(1L));
+                }
+                queueLatch.countDown();
+            });
         }
-        downLatch.await();
-        long end = System.currentTimeMillis();
-        System.out.println("time= " + (end - begin));
+        int consumed = 0;
+        List<VoucherOrder> buffer = new ArrayList<>(100);
+        while (consumed < total) {
+            buffer.add(queue.take());
+            queue.drainTo(buffer, 99);
+            consumed += buffer.size();
+            buffer.clear();
+        }
+        queueLatch.await();
+        long queueTime = System.currentTimeMillis() - begin;
+        Assertions.assertEquals(total, consumed);
+        Assertions.assertTrue(queue.isEmpty());
+
+        // redis stream：多个线程XADD，一个消费者XREADGROUP每次取100条并XACK
+        String key = "stream.orders.bench";
+        stringRedisTemplate.delete(key);
+        stringRedisTemplate.opsForStream().add(key, Collections.singletonMap("init", "0"));
+        stringRedisTemplate.opsForStream().createGroup(key, ReadOffset.from("0"), "bench");
+        CountDownLatch streamLatch = new CountDownLatch(producers);
+        begin = System.currentTimeMillis();
+        for (int p = 0; p < producers; p++) {
+            es.submit(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    Map<String, String> order = new HashMap<>();
+                    order.put("id", String.valueOf(i));
+                    order.put("userId", String.valueOf(i));
+                    order.put("voucherId", "1");
+                    stringRedisTemplate.opsForStream().add(key, order);
+                }
+                streamLatch.countDown();
+            });
+        }
+        consumed = 0;
+        while (consumed < total) {
+            List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(
+                    Consumer.from("bench", "c1"),
+                    StreamReadOptions.empty().count(100).block(Duration.ofSeconds(1)),
+                    StreamOffset.create(key, ReadOffset.lastConsumed()));
+            if (records == null || records.isEmpty()) {
+                continue;
+            }
+            RecordId[] ids = records.stream().map(MapRecord::getId).toArray(RecordId[]::new);
+            stringRedisTemplate.opsForStream().acknowledge(key, "bench", ids);
+            // 跳过初始化消费组时写入的占位消息
+            consumed += (int) records.stream().filter(r -> !r.getValue().containsKey("init")).count();
+        }
+        streamLatch.await();
+        long streamTime = System.currentTimeMillis() - begin;
+        Assertions.assertEquals(total, consumed);
+        // 所有消息都已经ack，消费组里没有待处理的消息
+        Assertions.assertEquals(0L, stringRedisTemplate.opsForStream().pending(key, "bench").getTotalPendingMessages());
+        stringRedisTemplate.delete(key);
+
+        log.info("orders={}, blocking queue time={}ms, qps={}", total, queueTime, total * 1000L / Math.max(queueTime, 1));
+        log.info("orders={}, redis stream time={}ms, qps={}", total, streamTime, total * 1000L / Math.max(streamTime, 1));
     }
 
+    // 对比单key库存和不同段数的分段库存下秒杀脚本的吞吐量，需要redis，手动运行
+    @Disabled("压测，需要redis，手动运行")
+    @Test
+    void testSegmentStockThroughput() throws InterruptedException {
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("lua/seckill.lua"));
+        script.setResultType(Long.class);
+        int threads = 200;
+        int perThread = 200;
+        for (int segments : new int[]{1, 2, 4, 8, 16}) {
+            String voucherId = String.valueOf(900000 + segments);
+            // 库存给足，保证所有请求都走扣减库存的完整路径
+            int stock = threads * perThread;
+            List<String> stockKeys = new ArrayList<>();
+            if (segments <= 1) {
+                stockKeys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId);
+            } else {
+                for (int i = 0; i < segments; i++) {
+                    stockKeys.add(RedisConstants.SECKILL_STOCK_KEY + voucherId + ":" + i);
+                }
+            }
+            int perKey = segments <= 1 ? stock : stock / segments + 1;
+            for (String stockKey : stockKeys) {
+                stringRedisTemplate.opsForValue().set(stockKey, String.valueOf(perKey));
+            }
+            Map<String, String> meta = new HashMap<>();
+            meta.put("begin", "0");
+            meta.put("end", String.valueOf(Long.MAX_VALUE));
+            meta.put("segments", String.valueOf(segments));
+            stringRedisTemplate.opsForHash().putAll(RedisConstants.SECKILL_VOUCHER_KEY + voucherId, meta);
+            CountDownLatch latch = new CountDownLatch(threads);
+            AtomicInteger success = new AtomicInteger();
+            long begin = System.currentTimeMillis();
+            for (int t = 0; t < threads; t++) {
+                int base = t * perThread;
+                es.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        Long result = stringRedisTemplate.execute(script, Collections.emptyList(),
+                                voucherId, String.valueOf(base + i), String.valueOf(base + i), "",
+                                String.valueOf(System.currentTimeMillis()), "60");
+                        if (result != null && result == 0L) {
+                            success.incrementAndGet();
+                        }
+                    }
+                    latch.countDown();
+                });
+            }
+            latch.await();
+            long time = System.currentTimeMillis() - begin;
+            log.info("segments={}, time={}ms, qps={}", segments, time, threads * perThread * 1000L / Math.max(time, 1));
+            // 库存给足，每个请求都下单成功，各段剩余库存之和正好少了请求数
+            Assertions.assertEquals(threads * perThread, success.get());
+            long remaining = 0;
+            for (String stockKey : stockKeys) {
+                remaining += Long.parseLong(stringRedisTemplate.opsForValue().get(stockKey));
+            }
+            Assertions.assertEquals((long) perKey * stockKeys.size() - threads * perThread, remaining);
+            // 清理测试数据
+            Set<String> keys = stringRedisTemplate.keys("seckill:*:" + voucherId + "*");
+            if (keys != null) {
+                stringRedisTemplate.delete(keys);
+            }
+        }
+    }
+
+    // 在百万级数据的订单表上对比两种写法：先COUNT再插入（无索引）和唯一索引 + INSERT IGNORE，需要mysql，手动运行
+    @Disabled("压测，需要mysql，手动运行")
+    @Test
+    void testOrderInsertPath() {
+        String table = "tb_voucher_order_bench";
+        int rows = 2000000;
+        int probes = 2000;
+        jdbcTemplate.execute("DROP TABLE IF EXISTS " + table);
+        jdbcTemplate.execute("CREATE TABLE " + table + " (`id` bigint NOT NULL, `user_id` bigint UNSIGNED NOT NULL, "
+                + "`voucher_id` bigint UNSIGNED NOT NULL, PRIMARY KEY (`id`)) ENGINE = InnoDB");
+        // 多行插入造数据，每条语句5000行
+        for (int from = 0; from < rows; from += 5000) {
+            StringBuilder sql = new StringBuilder("INSERT INTO " + table + " (`id`, `user_id`, `voucher_id`) VALUES ");
+            for (int i = from; i < from + 5000; i++) {
+                sql.append(i == from ? "" : ",").append('(').append(i).append(',').append(i).append(',').append(i % 100).append(')');
+            }
+            jdbcTemplate.execute(sql.toString());
+        }
+
+        // 旧写法：每个订单先COUNT判断是否下过单，再插入
+        long begin = System.nanoTime();
+        for (int i = 0; i < probes; i++) {
+            long id = rows + i;
+            Integer count = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + table + " WHERE user_id = ? AND voucher_id = ?",
+                    Integer.class, id, 1000);
+            if (count != null && count == 0) {
+                jdbcTemplate.update("INSERT INTO " + table + " (`id`, `user_id`, `voucher_id`) VALUES (?, ?, ?)", id, id, 1000);
+            }
+        }
+        long countTime = System.nanoTime() - begin;
+        Integer inserted = jdbcTemplate.queryForObject("SELECT COUNT(*) FROM " + table + " WHERE voucher_id = ?", Integer.class, 1000);
+
+        // 新写法：唯一索引保证一人一单，一条INSERT IGNORE
+        jdbcTemplate.execute("ALTER TABLE " + table + " ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`)");
+        begin = System.nanoTime();
+        int duplicates = 0;
+        for (int i = 0; i < probes; i++) {
+            // 一半是新订单，一半是已经存在的重复订单
+            long id = rows + probes + i;
+            long userId = i % 2 == 0 ? id : rows + i;
+            if (jdbcTemplate.update("INSERT IGNORE INTO " + table + " (`id`, `user_id`, `voucher_id`) VALUES (?, ?, ?)", id, userId, 1000) == 0) {
+                duplicates++;
+            }
+        }
+        long ignoreTime = System.nanoTime() - begin;
+        jdbcTemplate.execute("DROP TABLE " + table);
+        log.info("rows={}, COUNT + INSERT: {}us/order", rows, countTime / probes / 1000);
+        log.info("rows={}, INSERT IGNORE: {}us/order, duplicates={}", rows, ignoreTime / probes / 1000, duplicates);
+        // 旧写法的订单全部插入成功，新写法里已经下过单的一半被唯一索引挡掉
+        Assertions.assertEquals(probes, inserted);
+        Assertions.assertEquals(probes / 2, duplicates);
+    }
 
+    // 预热100万个商铺的耗时：造数据，预热，清理数据和缓存，需要redis和mysql，手动运行
+    @Disabled("压测，需要redis和mysql，手动运行")
+    @Test
+    void testShopWarmUp() throws InterruptedException {
+        long firstId = 10000000L;
+        int rows = 1000000;
+        for (int from = 0; from < rows; from += 5000) {
+            StringBuilder sql = new StringBuilder("INSERT INTO tb_shop (`id`, `name`, `type_id`, `images`, `address`, "
+                    + "`x`, `y`, `avg_price`, `sold`, `comments`, `score`, `open_hours`) VALUES ");
+            for (int i = from; i < from + 5000; i++) {
+                sql.append(i == from ? "" : ",").append('(').append(firstId + i).append(",'bench-shop-").append(i)
+                        .append("',1,'https://img.example.com/").append(i).append(".jpg','bench address ").append(i)
+                        .append("',120.149192,30.316078,80,4215,3035,37,'10:00-22:00')");
+            }
+            jdbcTemplate.execute(sql.toString());
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            long warmed = shopCacheWarmer.warmUp();
+            long cost = System.currentTimeMillis() - begin;
+            log.info("warm up {} shops: {}ms, {} shops/s", warmed, cost, warmed * 1000 / Math.max(cost, 1));
+            Assertions.assertTrue(warmed >= rows);
+            // 第一个、中间和最后一个造出来的商铺都已经写进缓存
+            for (long id : new long[]{firstId, firstId + rows / 2, firstId + rows - 1}) {
+                Assertions.assertNotNull(stringRedisTemplate.opsForValue().get(RedisConstants.CACHE_SHOP_KEY + id));
+            }
+        } finally {
+            jdbcTemplate.update("DELETE FROM tb_shop WHERE id >= ?", firstId);
+            for (int from = 0; from < rows; from += 10000) {
+                List<String> keys = new ArrayList<>(10000);
+                for (int i = from; i < from + 10000; i++) {
+                    keys.add(RedisConstants.CACHE_SHOP_KEY + (firstId + i));
+                }
+                stringRedisTemplate.delete(keys);
+            }
+        }
+    }
 }
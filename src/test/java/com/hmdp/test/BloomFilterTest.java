@@ -0,0 +1,54 @@
+package com.hmdp.test;
+
+import com.hmdp.utils.BloomFilter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 布隆过滤器的误判率和序列化测试
+ */
+public class BloomFilterTest {
+
+    private static final int INSERTIONS = 100000;
+
+    @Test
+    void testFalsePositiveRate() {
+        BloomFilter filter = new BloomFilter(INSERTIONS, 0.01);
+        for (long id = 1; id <= INSERTIONS; id++) {
+            filter.put(String.valueOf(id));
+        }
+        // 加入过的一定能判断为存在
+        for (long id = 1; id <= INSERTIONS; id++) {
+            Assertions.assertTrue(filter.mightContain(String.valueOf(id)));
+        }
+        int falsePositives = 0;
+        for (long id = INSERTIONS + 1; id <= INSERTIONS * 2L; id++) {
+            if (filter.mightContain(String.valueOf(id))) {
+                falsePositives++;
+            }
+        }
+        double fpp = (double) falsePositives / INSERTIONS;
+        System.out.printf("bits: %d, hashes: %d, bytes: %d, fpp: %.4f, expected: %.4f%n", filter.getNumBits(),
+                filter.getNumHashes(), filter.getSizeInBytes(), fpp, filter.expectedFpp(INSERTIONS));
+        Assertions.assertTrue(fpp < 0.02);
+    }
+
+    @Test
+    void testBytes() {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        long[] indexes = filter.put("1");
+        byte[] bytes = filter.toBytes();
+        // 和redis位图的顺序一致：偏移量 HEADER_BITS + i 在第 (HEADER_BITS + i) / 8 个字节，高位在前
+        for (long index : indexes) {
+            long offset = BloomFilter.HEADER_BITS + index;
+            Assertions.assertNotEquals(0, bytes[(int) (offset >>> 3)] & (0x80 >>> (offset & 7)));
+        }
+        BloomFilter copy = BloomFilter.fromBytes(bytes);
+        Assertions.assertNotNull(copy);
+        Assertions.assertEquals(filter.getNumBits(), copy.getNumBits());
+        Assertions.assertTrue(copy.mightContain("1"));
+        Assertions.assertNull(BloomFilter.fromBytes(new byte[3]));
+    }
+}
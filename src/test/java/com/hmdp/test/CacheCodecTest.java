@@ -0,0 +1,124 @@
+package com.hmdp.test;
+
+import com.hmdp.pojo.dto.UserDTO;
+import com.hmdp.pojo.entity.Shop;
+import com.hmdp.pojo.entity.Voucher;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 缓存编解码器的正确性测试，以及json和二进制格式的大小、编解码耗时、内存分配对比
+ */
+public class CacheCodecTest {
+
+    private static final int WARMUP = 20000;
+    private static final int ITERATIONS = 200000;
+
+    private final CacheCodec json = new JsonCacheCodec();
+    private final CacheCodec binary = new BinaryCacheCodec();
+
+    @Test
+    void testRoundTrip() {
+        Shop shop = sampleShop();
+        long expireAt = System.currentTimeMillis() + 10000;
+        byte[] bytes = binary.encode(shop, expireAt);
+        Assertions.assertTrue(BinaryCacheCodec.isBinary(bytes));
+        Assertions.assertEquals(expireAt, binary.readExpireAt(bytes));
+        Assertions.assertEquals(shop, binary.decodeData(bytes, Shop.class));
+
+        // 空字段不写入
+        Voucher voucher = new Voucher().setId(1L).setTitle("50元代金券").setPayValue(4750L);
+        Assertions.assertEquals(voucher, binary.decode(binary.encode(voucher), Voucher.class));
+
+        UserDTO user = new UserDTO();
+        user.setId(-3L);
+        user.setNickName("user_abc");
+        Assertions.assertEquals(user, binary.decode(binary.encode(user), UserDTO.class));
+
+        // 原来json格式的数据仍然可以读取，过期时间精确到毫秒
+        byte[] jsonBytes = json.encode(shop, expireAt);
+        Assertions.assertEquals(expireAt, binary.readExpireAt(jsonBytes));
+        Assertions.assertEquals(shop.getName(), binary.decodeData(jsonBytes, Shop.class).getName());
+    }
+
+    @Test
+    void testMalformedInput() {
+        byte[] bytes = binary.encode(sampleShop(), System.currentTimeMillis() + 10000);
+        // 在头部之后的任意位置截断都要报格式错误，不能越界或者返回缺字段的对象
+        for (int length = 10; length < bytes.length; length++) {
+            byte[] truncated = Arrays.copyOf(bytes, length);
+            Assertions.assertThrows(IllegalStateException.class, () -> binary.decodeData(truncated, Shop.class),
+                    "length=" + length);
+        }
+        // 未注册的类型编号
+        byte[] unknownType = bytes.clone();
+        unknownType[1] = (byte) 0xFF;
+        Assertions.assertThrows(IllegalStateException.class, () -> binary.decodeData(unknownType, Shop.class));
+        // 类型和调用方期望的不一致
+        Assertions.assertThrows(IllegalStateException.class, () -> binary.decodeData(bytes, Voucher.class));
+        // 魔数不对或者头部不完整时按json读取，不是json时抛出异常
+        byte[] badMagic = bytes.clone();
+        badMagic[0] = 0;
+        Assertions.assertFalse(BinaryCacheCodec.isBinary(badMagic));
+        Assertions.assertThrows(RuntimeException.class, () -> binary.decodeData(badMagic, Shop.class));
+        Assertions.assertFalse(BinaryCacheCodec.isBinary(Arrays.copyOf(bytes, 5)));
+        Assertions.assertThrows(RuntimeException.class, () -> binary.readExpireAt(Arrays.copyOf(bytes, 5)));
+    }
+
+    @Test
+    void testCompare() {
+        Shop shop = sampleShop();
+        long expireAt = System.currentTimeMillis() + 10000;
+        byte[] jsonBytes = json.encode(shop, expireAt);
+        byte[] binaryBytes = binary.encode(shop, expireAt);
+        System.out.printf("size json: %d bytes, binary: %d bytes%n", jsonBytes.length, binaryBytes.length);
+        Assertions.assertTrue(binaryBytes.length < jsonBytes.length);
+
+        measure("json encode", () -> json.encode(shop, expireAt));
+        measure("binary encode", () -> binary.encode(shop, expireAt));
+        measure("json decode", () -> {
+            json.readExpireAt(jsonBytes);
+            return json.decodeData(jsonBytes, Shop.class);
+        });
+        measure("binary decode", () -> {
+            binary.readExpireAt(binaryBytes);
+            return binary.decodeData(binaryBytes, Shop.class);
+        });
+    }
+
+    private static void measure(String name, Supplier<Object> task) {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += task.get().hashCode();
+        }
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        long begin = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink += task.get().hashCode();
+        }
+        long cost = System.nanoTime() - begin;
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        System.out.printf("%s: %d ns/op, %d bytes/op (%d)%n", name, cost / ITERATIONS, allocated / ITERATIONS, sink & 1);
+    }
+
+    private static Shop sampleShop() {
+        return new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号").setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39))
+                .setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+    }
+}
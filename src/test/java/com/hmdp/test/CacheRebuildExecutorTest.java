@@ -0,0 +1,41 @@
+package com.hmdp.test;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.utils.CacheRebuildExecutor;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 缓存重建线程池的测试：加载抛出Error之后，同一个key还能再次重建，前缀的并发名额也已经归还
+ */
+public class CacheRebuildExecutorTest {
+
+    @Test
+    void testErrorReleasesKeyAndPermit() throws Exception {
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.getRebuild().setThreads(1);
+        cacheProperties.getRebuild().setMaxPerPrefix(1);
+        CacheRebuildExecutor executor = new CacheRebuildExecutor(cacheProperties);
+        Assertions.assertTrue(executor.submit("cache:shop:", "cache:shop:1", () -> {
+            throw new StackOverflowError("deserialize");
+        }));
+        // 任务结束之前重复提交会被去重，结束之后应当被接受
+        CountDownLatch rebuilt = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean accepted = false;
+        while (!accepted && System.currentTimeMillis() < deadline) {
+            accepted = executor.submit("cache:shop:", "cache:shop:1", rebuilt::countDown);
+            if (!accepted) {
+                Thread.sleep(1);
+            }
+        }
+        Assertions.assertTrue(accepted);
+        Assertions.assertTrue(rebuilt.await(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(1L, executor.getMetrics().get("failed"));
+    }
+}
@@ -0,0 +1,43 @@
+package com.hmdp.test;
+
+import com.hmdp.utils.CountMinSketch;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * Count-Min Sketch的估计误差和衰减测试
+ */
+public class CountMinSketchTest {
+
+    @Test
+    void testEstimateNeverUnderCounts() {
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        for (int i = 0; i < 100000; i++) {
+            sketch.add("cache:shop:" + i, 1);
+        }
+        for (int i = 0; i < 5000; i++) {
+            sketch.add("cache:shop:1", 1);
+        }
+        int estimate = sketch.estimate("cache:shop:1");
+        // 只会多算，多算的部分不超过总数 * e / width 的量级
+        Assertions.assertTrue(estimate >= 5001);
+        Assertions.assertTrue(estimate < 5001 + 100000 * 3 / 1024, "estimate " + estimate);
+        // 冷key的估计值远小于热点
+        Assertions.assertTrue(sketch.estimate("cache:shop:99999") < 1000);
+    }
+
+    @Test
+    void testDecay() {
+        CountMinSketch sketch = new CountMinSketch(4, 1000);
+        Assertions.assertEquals(1024, sketch.getWidth());
+        sketch.add("seckill:stock:1", 1000);
+        sketch.decay();
+        Assertions.assertEquals(500, sketch.estimate("seckill:stock:1"));
+        for (int i = 0; i < 10; i++) {
+            sketch.decay();
+        }
+        Assertions.assertEquals(0, sketch.estimate("seckill:stock:1"));
+    }
+}
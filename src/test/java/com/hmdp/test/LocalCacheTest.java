@@ -0,0 +1,83 @@
+package com.hmdp.test;
+
+import com.hmdp.utils.LocalCache;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 本地缓存的容量淘汰和过期测试，以及多线程同时写入、淘汰时的容量和数据正确性
+ */
+public class LocalCacheTest {
+
+    @Test
+    void testEvictUnreferenced() {
+        LocalCache<String> cache = new LocalCache<>(100);
+        for (int i = 0; i < 100; i++) {
+            cache.put("k" + i, "v" + i, 60000);
+        }
+        // 访问过的条目在淘汰时多一次机会
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals("v" + i, cache.get("k" + i));
+        }
+        for (int i = 100; i < 150; i++) {
+            cache.put("k" + i, "v" + i, 60000);
+        }
+        Assertions.assertTrue(cache.size() <= 100);
+        for (int i = 0; i < 10; i++) {
+            Assertions.assertEquals("v" + i, cache.get("k" + i));
+        }
+    }
+
+    @Test
+    void testExpire() throws InterruptedException {
+        LocalCache<String> cache = new LocalCache<>(10);
+        cache.put("a", "1", 20);
+        Assertions.assertEquals("1", cache.get("a"));
+        Thread.sleep(40);
+        Assertions.assertNull(cache.get("a"));
+        Assertions.assertEquals(0, cache.size());
+    }
+
+    @Test
+    void testConcurrentEviction() throws Exception {
+        int maxSize = 1000;
+        int threads = 8;
+        int perThread = 20000;
+        LocalCache<String> cache = new LocalCache<>(maxSize);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    String key = thread + ":" + i;
+                    cache.put(key, key, 60000);
+                    // 读到的一定是自己写入的值，被淘汰时为null
+                    String value = cache.get(thread + ":" + (i / 2));
+                    if (value != null && !value.equals(thread + ":" + (i / 2))) {
+                        throw new IllegalStateException("读到错误的值 " + value);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        // 淘汰时没有拿到锁的线程会跳过，每个线程最多多留下一个条目
+        Assertions.assertTrue(cache.size() <= maxSize + threads, "size=" + cache.size());
+        // 没有竞争时写入一次就回到容量以内
+        cache.put("last", "last", 60000);
+        Assertions.assertTrue(cache.size() <= maxSize, "size=" + cache.size());
+        Assertions.assertEquals("last", cache.get("last"));
+    }
+}
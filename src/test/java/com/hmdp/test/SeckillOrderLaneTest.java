@@ -0,0 +1,93 @@
+package com.hmdp.test;
+
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.pojo.entity.VoucherOrder;
+import com.hmdp.utils.SeckillOrderLane;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 写库通道的测试：缓冲区满时的拒绝、限时等待和溢出，溢出之后同一个用户的订单仍然按提交顺序处理
+ */
+public class SeckillOrderLaneTest {
+
+    @Test
+    void testSpillKeepsOrder() throws InterruptedException {
+        List<Long> handled = Collections.synchronizedList(new ArrayList<>());
+        SeckillOrderLane orderLane = newLane(SeckillProperties.OverflowPolicy.SPILL, orders -> {
+            for (VoucherOrder order : orders) {
+                handled.add(order.getId());
+            }
+        });
+        // 消费者启动之前缓冲区只能放4个，其余的全部溢出
+        for (long i = 0; i < 100; i++) {
+            Assertions.assertTrue(orderLane.offer(order(i)));
+        }
+        Assertions.assertEquals(96L, orderLane.getMetrics().get("spilled"));
+        orderLane.start();
+        try {
+            // 消费过程中继续提交，新订单要排在溢出的订单后面
+            for (long i = 100; i < 200; i++) {
+                Assertions.assertTrue(orderLane.offer(order(i)));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (handled.size() < 200 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+        } finally {
+            orderLane.shutdown();
+        }
+        Assertions.assertEquals(200, handled.size());
+        for (int i = 0; i < 200; i++) {
+            Assertions.assertEquals(i, handled.get(i).longValue());
+        }
+        Assertions.assertEquals(0, orderLane.size());
+    }
+
+    @Test
+    void testRejectAndBlockWhenFull() {
+        SeckillOrderLane rejectLane = newLane(SeckillProperties.OverflowPolicy.REJECT, orders -> {
+        });
+        for (long i = 0; i < 4; i++) {
+            Assertions.assertTrue(rejectLane.offer(order(i)));
+        }
+        Assertions.assertFalse(rejectLane.offer(order(4L)));
+        Assertions.assertEquals(1L, rejectLane.getMetrics().get("rejected"));
+        Assertions.assertEquals(4, rejectLane.size());
+
+        // 限时等待到期之后仍然没有空位，同样拒绝
+        SeckillOrderLane blockLane = newLane(SeckillProperties.OverflowPolicy.BLOCK, orders -> {
+        });
+        for (long i = 0; i < 4; i++) {
+            Assertions.assertTrue(blockLane.offer(order(i)));
+        }
+        long begin = System.nanoTime();
+        Assertions.assertFalse(blockLane.offer(order(4L)));
+        Assertions.assertTrue(System.nanoTime() - begin >= TimeUnit.MILLISECONDS.toNanos(10));
+        Assertions.assertEquals(1L, blockLane.getMetrics().get("blocked"));
+        Assertions.assertEquals(1L, blockLane.getMetrics().get("rejected"));
+    }
+
+    private static SeckillOrderLane newLane(SeckillProperties.OverflowPolicy policy, Consumer<List<VoucherOrder>> handler) {
+        SeckillProperties.Lane lane = new SeckillProperties.Lane();
+        lane.setQueueCapacity(4);
+        lane.setOverflowPolicy(policy);
+        lane.setOfferTimeoutMs(10);
+        SeckillProperties.Batch batch = new SeckillProperties.Batch();
+        batch.setEnabled(false);
+        return new SeckillOrderLane(0, lane, batch, handler);
+    }
+
+    // 同一个用户的订单，id就是提交的顺序
+    private static VoucherOrder order(long id) {
+        return new VoucherOrder().setId(id).setUserId(1L).setVoucherId(1L);
+    }
+}
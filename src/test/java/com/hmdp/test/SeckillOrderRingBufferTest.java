@@ -0,0 +1,185 @@
+package com.hmdp.test;
+
+import com.hmdp.pojo.entity.VoucherOrder;
+import com.hmdp.utils.SeckillOrderRingBuffer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 环形缓冲区的正确性测试，包括小容量下多个生产者反复绕圈写入，以及和ArrayBlockingQueue的吞吐量对比
+ */
+public class SeckillOrderRingBufferTest {
+
+    private static final int PRODUCERS = 8;
+    private static final int PER_PRODUCER = 200000;
+
+    @Test
+    void testOfferAndDrain() {
+        SeckillOrderRingBuffer ring = new SeckillOrderRingBuffer(3);
+        Assertions.assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertTrue(ring.offer(i, 100 + i, 1));
+        }
+        // 满了之后拒绝写入
+        Assertions.assertFalse(ring.offer(4, 104, 1));
+        List<VoucherOrder> orders = new ArrayList<>();
+        Assertions.assertEquals(2, ring.drainTo(orders, 2));
+        Assertions.assertEquals(0L, orders.get(0).getId());
+        Assertions.assertEquals(101L, orders.get(1).getUserId());
+        // 消费之后槽位可以重复使用
+        Assertions.assertTrue(ring.offer(4, 104, 1));
+        Assertions.assertEquals(3, ring.drainTo(orders, 10));
+        Assertions.assertEquals(4L, orders.get(4).getId());
+        Assertions.assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    void testWraparoundWithConcurrentProducers() throws Exception {
+        // 容量很小，每个槽位被反复复用上万次
+        SeckillOrderRingBuffer ring = new SeckillOrderRingBuffer(8);
+        int producers = 4;
+        int perProducer = 50000;
+        ExecutorService es = Executors.newFixedThreadPool(producers);
+        try {
+            for (int p = 0; p < producers; p++) {
+                long producer = p;
+                es.submit(() -> {
+                    for (int i = 0; i < perProducer; i++) {
+                        // 三个字段互相对应，读到半写的槽位时能发现
+                        for (int attempt = 0; !ring.offer(producer << 32 | i, producer, i); attempt++) {
+                            SeckillOrderRingBuffer.backoff(attempt);
+                        }
+                    }
+                });
+            }
+            int[] next = new int[producers];
+            long consumed = 0;
+            long deadline = System.currentTimeMillis() + 30000;
+            List<VoucherOrder> buffer = new ArrayList<>(8);
+            while (consumed < (long) producers * perProducer) {
+                Assertions.assertTrue(System.currentTimeMillis() < deadline, "consumed=" + consumed);
+                if (ring.drainTo(buffer, 8) == 0) {
+                    ring.awaitNotEmpty(TimeUnit.MILLISECONDS.toNanos(1));
+                    continue;
+                }
+                for (VoucherOrder voucherOrder : buffer) {
+                    int producer = voucherOrder.getUserId().intValue();
+                    Assertions.assertEquals((long) producer << 32 | voucherOrder.getVoucherId(), voucherOrder.getId().longValue());
+                    // 同一个生产者的订单按写入顺序取出，不丢不重
+                    Assertions.assertEquals(next[producer]++, voucherOrder.getVoucherId().intValue());
+                }
+                consumed += buffer.size();
+                buffer.clear();
+            }
+            Assertions.assertTrue(ring.isEmpty());
+            for (int count : next) {
+                Assertions.assertEquals(perProducer, count);
+            }
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    @Test
+    void testMultiProducerThroughput() throws InterruptedException {
+        ExecutorService es = Executors.newFixedThreadPool(PRODUCERS);
+        try {
+            long total = (long) PRODUCERS * PER_PRODUCER;
+            // 预热
+            runQueue(es, 1 << 16);
+            runRing(es, 1 << 16);
+
+            long begin = System.nanoTime();
+            long queueSum = runQueue(es, 1 << 16);
+            long queueTime = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            long ringSum = runRing(es, 1 << 16);
+            long ringTime = System.nanoTime() - begin;
+
+            // 每个订单都被消费且只被消费一次
+            long expected = PRODUCERS * ((long) PER_PRODUCER * (PER_PRODUCER - 1) / 2);
+            Assertions.assertEquals(expected, queueSum);
+            Assertions.assertEquals(expected, ringSum);
+            System.out.println("ArrayBlockingQueue: " + TimeUnit.NANOSECONDS.toMillis(queueTime) + " ms, "
+                    + total * 1000000000L / queueTime + " orders/s");
+            System.out.println("SeckillOrderRingBuffer: " + TimeUnit.NANOSECONDS.toMillis(ringTime) + " ms, "
+                    + total * 1000000000L / ringTime + " orders/s");
+        } finally {
+            es.shutdownNow();
+        }
+    }
+
+    // 多个线程入队，一个线程每次最多取100个，返回订单id之和
+    private long runQueue(ExecutorService es, int capacity) throws InterruptedException {
+        BlockingQueue<VoucherOrder> queue = new ArrayBlockingQueue<>(capacity);
+        CountDownLatch latch = new CountDownLatch(PRODUCERS);
+        for (int p = 0; p < PRODUCERS; p++) {
+            es.submit(() -> {
+                try {
+                    for (int i = 0; i < PER_PRODUCER; i++) {
+                        queue.put(new VoucherOrder().setId((long) i).setUserId((long) i).setVoucherId(1L));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                latch.countDown();
+            });
+        }
+        long sum = 0;
+        long consumed = 0;
+        List<VoucherOrder> buffer = new ArrayList<>(100);
+        while (consumed < (long) PRODUCERS * PER_PRODUCER) {
+            buffer.add(queue.take());
+            queue.drainTo(buffer, 99);
+            for (VoucherOrder voucherOrder : buffer) {
+                sum += voucherOrder.getId();
+            }
+            consumed += buffer.size();
+            buffer.clear();
+        }
+        latch.await();
+        return sum;
+    }
+
+    private long runRing(ExecutorService es, int capacity) throws InterruptedException {
+        SeckillOrderRingBuffer ring = new SeckillOrderRingBuffer(capacity);
+        CountDownLatch latch = new CountDownLatch(PRODUCERS);
+        for (int p = 0; p < PRODUCERS; p++) {
+            es.submit(() -> {
+                for (int i = 0; i < PER_PRODUCER; i++) {
+                    for (int attempt = 0; !ring.offer(i, i, 1L); attempt++) {
+                        SeckillOrderRingBuffer.backoff(attempt);
+                    }
+                }
+                latch.countDown();
+            });
+        }
+        long sum = 0;
+        long consumed = 0;
+        List<VoucherOrder> buffer = new ArrayList<>(100);
+        while (consumed < (long) PRODUCERS * PER_PRODUCER) {
+            if (ring.drainTo(buffer, 100) == 0) {
+                ring.awaitNotEmpty(TimeUnit.MILLISECONDS.toNanos(1));
+                continue;
+            }
+            for (VoucherOrder voucherOrder : buffer) {
+                sum += voucherOrder.getId();
+            }
+            consumed += buffer.size();
+            buffer.clear();
+        }
+        latch.await();
+        return sum;
+    }
+}
@@ -0,0 +1,84 @@
+package com.hmdp.test;
+
+import com.hmdp.common.RedisConstants;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 本地售罄标记的测试：重复标记只广播一次，标记过期后放行请求去redis重新确认，补货和异常的广播消息
+ */
+public class SeckillSoldOutRegistryTest {
+
+    private SeckillSoldOutRegistry registry;
+    private StringRedisTemplate stringRedisTemplate;
+    private SeckillProperties seckillProperties;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = Mockito.mock(StringRedisTemplate.class);
+        seckillProperties = new SeckillProperties();
+        seckillProperties.getSoldOut().setRecheckMs(50);
+        registry = new SeckillSoldOutRegistry();
+        ReflectionTestUtils.setField(registry, "stringRedisTemplate", stringRedisTemplate);
+        ReflectionTestUtils.setField(registry, "seckillProperties", seckillProperties);
+    }
+
+    @Test
+    void testRecheckAfterExpiry() throws InterruptedException {
+        registry.markSoldOut(1L);
+        registry.markSoldOut(1L);
+        Assertions.assertTrue(registry.isSoldOut(1L));
+        Assertions.assertFalse(registry.isSoldOut(2L));
+        // 标记还有效时重复标记不再广播
+        Mockito.verify(stringRedisTemplate, Mockito.times(1))
+                .convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, "soldout:1");
+        Thread.sleep(80);
+        // 过期后放行，直到redis再次确认售罄之前都不拒绝
+        Assertions.assertFalse(registry.isSoldOut(1L));
+        Assertions.assertFalse(registry.isSoldOut(1L));
+        // 重新确认售罄，过期的标记不算重复，再广播一次
+        registry.markSoldOut(1L);
+        Assertions.assertTrue(registry.isSoldOut(1L));
+        Mockito.verify(stringRedisTemplate, Mockito.times(2))
+                .convertAndSend(RedisConstants.SECKILL_SOLD_OUT_CHANNEL, "soldout:1");
+        Assertions.assertEquals(2L, registry.getMetrics().get("rejected"));
+    }
+
+    @Test
+    void testMessages() {
+        registry.onMessage(message("soldout:3"), null);
+        Assertions.assertTrue(registry.isSoldOut(3L));
+        // 其它节点广播的售罄不会再转发
+        Mockito.verify(stringRedisTemplate, Mockito.never()).convertAndSend(Mockito.anyString(), Mockito.anyString());
+        registry.onMessage(message("reset:3"), null);
+        Assertions.assertFalse(registry.isSoldOut(3L));
+        // 无法识别的消息只记录日志
+        registry.onMessage(message("soldout:abc"), null);
+        registry.onMessage(message("unknown"), null);
+        Assertions.assertEquals(0, registry.getMetrics().get("soldOutVouchers"));
+    }
+
+    @Test
+    void testDisabled() {
+        seckillProperties.getSoldOut().setEnabled(false);
+        registry.markSoldOut(1L);
+        Assertions.assertFalse(registry.isSoldOut(1L));
+        Mockito.verifyNoInteractions(stringRedisTemplate);
+    }
+
+    private static DefaultMessage message(String body) {
+        return new DefaultMessage(RedisConstants.SECKILL_SOLD_OUT_CHANNEL.getBytes(StandardCharsets.UTF_8),
+                body.getBytes(StandardCharsets.UTF_8));
+    }
+}
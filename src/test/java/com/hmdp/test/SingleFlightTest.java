@@ -0,0 +1,131 @@
+package com.hmdp.test;
+
+import com.hmdp.utils.SingleFlight;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 请求合并的测试：并发加载同一个key只执行一次，异常传递给所有等待的线程
+ */
+public class SingleFlightTest {
+
+    private static final int THREADS = 8;
+
+    @Test
+    void testCoalesce() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<String>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(executor.submit(() -> singleFlight.execute("shop:1", () -> {
+                calls.incrementAndGet();
+                awaitQuietly(release);
+                return "shop";
+            }, 5000)));
+        }
+        // 等所有线程都进入合并之后再放行加载
+        while (singleFlight.getCoalesced() < THREADS - 1) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        for (Future<String> future : futures) {
+            Assertions.assertEquals("shop", future.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        Assertions.assertEquals(1, calls.get());
+        Assertions.assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    void testErrorPropagation() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CountDownLatch release = new CountDownLatch(1);
+        Thread leader = new Thread(() -> {
+            try {
+                singleFlight.execute("shop:2", () -> {
+                    awaitQuietly(release);
+                    throw new IllegalStateException("db down");
+                }, 5000);
+            } catch (IllegalStateException ignored) {
+            }
+        });
+        leader.start();
+        while (singleFlight.getInFlight() == 0) {
+            Thread.sleep(1);
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Object> waiter = executor.submit(() -> singleFlight.execute("shop:2", () -> "unused", 5000));
+        while (singleFlight.getCoalesced() == 0) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        Exception e = Assertions.assertThrows(Exception.class, () -> waiter.get(5, TimeUnit.SECONDS));
+        Assertions.assertTrue(e.getCause() instanceof IllegalStateException);
+        // 等待超时
+        CountDownLatch never = new CountDownLatch(1);
+        executor.submit(() -> singleFlight.execute("shop:3", () -> {
+            awaitQuietly(never);
+            return null;
+        }, 5000));
+        while (singleFlight.getInFlight() == 0) {
+            Thread.sleep(1);
+        }
+        Assertions.assertThrows(RuntimeException.class, () -> singleFlight.execute("shop:3", () -> "unused", 20));
+        Assertions.assertEquals(1, singleFlight.getTimeouts());
+        never.countDown();
+        executor.shutdown();
+        leader.join();
+    }
+
+    @Test
+    void testErrorSharedAndKeyReleased() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        CountDownLatch release = new CountDownLatch(1);
+        StackOverflowError error = new StackOverflowError("decode");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<Object> leader = executor.submit(() -> singleFlight.execute("shop:4", () -> {
+            awaitQuietly(release);
+            throw error;
+        }, 5000));
+        while (singleFlight.getInFlight() == 0) {
+            Thread.sleep(1);
+        }
+        Future<Object> waiter = executor.submit(() -> singleFlight.execute("shop:4", () -> "unused", 5000));
+        while (singleFlight.getCoalesced() == 0) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        // Error不被包装，加载线程和等待线程拿到的是同一个
+        Exception leaderError = Assertions.assertThrows(Exception.class, () -> leader.get(5, TimeUnit.SECONDS));
+        Exception waiterError = Assertions.assertThrows(Exception.class, () -> waiter.get(5, TimeUnit.SECONDS));
+        Assertions.assertSame(error, leaderError.getCause());
+        Assertions.assertSame(error, waiterError.getCause());
+        executor.shutdown();
+        // 失败之后key已经移除，下一次调用重新加载，null也能正常返回
+        Assertions.assertEquals(0, singleFlight.getInFlight());
+        Assertions.assertEquals("shop", singleFlight.execute("shop:4", () -> "shop", 5000));
+        Assertions.assertNull(singleFlight.execute("shop:4", () -> null, 5000));
+        Assertions.assertEquals(3, singleFlight.getLoads());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.hmdp.test;
+
+import com.hmdp.config.IdProperties;
+import com.hmdp.utils.SnowflakeIdGenerator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 雪花算法id生成器的唯一性、时钟回拨、租约失效和单线程吞吐量，redis只在租用worker id时使用，这里用mock代替
+ */
+public class SnowflakeIdGeneratorTest {
+
+    private static final long BEGIN_TIMESTAMP_MS = 1640995200000L;
+
+    private SnowflakeIdGenerator generator;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        StringRedisTemplate template = Mockito.mock(StringRedisTemplate.class);
+        ValueOperations<String, String> valueOperations = Mockito.mock(ValueOperations.class);
+        HashOperations<String, Object, Object> hashOperations = Mockito.mock(HashOperations.class);
+        Mockito.when(template.opsForValue()).thenReturn(valueOperations);
+        Mockito.when(template.opsForHash()).thenReturn(hashOperations);
+        Mockito.when(valueOperations.setIfAbsent(Mockito.anyString(), Mockito.anyString(), Mockito.anyLong(), Mockito.any()))
+                .thenReturn(true);
+        generator = new SnowflakeIdGenerator();
+        ReflectionTestUtils.setField(generator, "stringRedisTemplate", template);
+        ReflectionTestUtils.setField(generator, "idProperties", new IdProperties());
+        ReflectionTestUtils.invokeMethod(generator, "init");
+    }
+
+    @Test
+    void testUniqueAndIncreasing() throws InterruptedException {
+        int threads = 8;
+        int perThread = 200000;
+        Set<Long> ids = ConcurrentHashMap.newKeySet(threads * perThread);
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            es.submit(() -> {
+                long last = 0;
+                for (int i = 0; i < perThread; i++) {
+                    long id = generator.nextId("order");
+                    // 同一个线程拿到的id严格递增
+                    Assertions.assertTrue(id > last);
+                    last = id;
+                    ids.add(id);
+                }
+                latch.countDown();
+            });
+        }
+        latch.await();
+        es.shutdown();
+        Assertions.assertEquals(threads * perThread, ids.size());
+        Assertions.assertEquals(generator.getWorkerId(), (ids.iterator().next() >> 12) & 1023);
+    }
+
+    @Test
+    void testClockRollback() {
+        long worker = generator.getWorkerId() << 12;
+        // 上一次生成的id在60秒之后，相当于系统时钟回拨了60秒，超过了最大等待的5秒
+        long future = System.currentTimeMillis() - BEGIN_TIMESTAMP_MS + 60000;
+        ReflectionTestUtils.setField(generator, "state", new AtomicLong(future << 22 | worker));
+        long last = 0;
+        for (int i = 0; i < 10000; i++) {
+            long id = generator.nextId("order");
+            Assertions.assertTrue(id > last);
+            // 沿用未来的时间戳继续递增，不会回到当前时间
+            Assertions.assertTrue(id >>> 22 >= future);
+            last = id;
+        }
+        // 序列号用完时不等待60秒，直接借用下一毫秒
+        ReflectionTestUtils.setField(generator, "state", new AtomicLong(future << 22 | worker | 4095));
+        long begin = System.currentTimeMillis();
+        Assertions.assertEquals((future + 1) << 22 | worker, generator.nextId("order").longValue());
+        Assertions.assertTrue(System.currentTimeMillis() - begin < 1000);
+        // 回拨在5秒以内时，序列号用完后等待系统时钟追上
+        long near = System.currentTimeMillis() - BEGIN_TIMESTAMP_MS + 50;
+        ReflectionTestUtils.setField(generator, "state", new AtomicLong(near << 22 | worker | 4095));
+        long id = generator.nextId("order");
+        Assertions.assertTrue(id >>> 22 > near);
+        Assertions.assertTrue(System.currentTimeMillis() - BEGIN_TIMESTAMP_MS > near);
+    }
+
+    @Test
+    void testLeaseLoss() {
+        long before = generator.nextId("order");
+        // 续约失败，租约在本地过期
+        ReflectionTestUtils.setField(generator, "leaseDeadline", System.currentTimeMillis() - 1);
+        Assertions.assertFalse(generator.isAvailable());
+        Assertions.assertThrows(IllegalStateException.class, () -> generator.nextId("order"));
+        // 重新租到worker id之后恢复，时间戳不会倒退，新的id使用新的worker id
+        ReflectionTestUtils.invokeMethod(generator, "acquireWorkerId");
+        Assertions.assertTrue(generator.isAvailable());
+        long after = generator.nextId("order");
+        Assertions.assertTrue(after >>> 22 > before >>> 22);
+        Assertions.assertEquals(generator.getWorkerId(), (after >> 12) & 1023);
+    }
+
+    @Test
+    void testThroughput() {
+        int count = 20000000;
+        long sum = 0;
+        long begin = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            sum += generator.nextId("order");
+        }
+        long time = System.nanoTime() - begin;
+        System.out.println("snowflake: " + count * 1000000000L / time + " ids/s, " + time / count + " ns/id, checksum=" + sum);
+        System.out.println("snowflake: time=" + TimeUnit.NANOSECONDS.toMillis(time) + "ms");
+    }
+}
@@ -0,0 +1,84 @@
+package com.hmdp.test;
+
+import com.hmdp.utils.TopKeys;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * @author Feg
+ * @version 1.0
+ * 热点key统计测试：少数热点key混在大量只访问一次的key里，访问次数超过总数/容量的key一定能排在最前面；表满时的替换和计数误差的上下界
+ */
+public class TopKeysTest {
+
+    @Test
+    void testHotKeysOnTop() {
+        TopKeys topKeys = new TopKeys(50, 1);
+        for (int i = 0; i < 10000; i++) {
+            topKeys.record("cold:" + i);
+            if (i % 10 == 0) {
+                topKeys.record("hot:1");
+            }
+            if (i % 20 == 0) {
+                topKeys.record("hot:2");
+            }
+        }
+        List<Map<String, Object>> top = topKeys.top(2);
+        Assertions.assertEquals(2, top.size());
+        Assertions.assertEquals("hot:1", top.get(0).get("key"));
+        Assertions.assertEquals("hot:2", top.get(1).get("key"));
+        // 计数是上界，减去误差后不超过真实值
+        long count = (Long) top.get(0).get("count");
+        long error = (Long) top.get(0).get("error");
+        Assertions.assertTrue(count >= 1000 && count - error <= 1000);
+    }
+
+    @Test
+    void testReplacementAndErrorBound() {
+        // 表满时新key替换计数最小的key，继承它的计数作为误差
+        TopKeys small = new TopKeys(2, 1);
+        small.record("a");
+        small.record("a");
+        small.record("b");
+        small.record("c");
+        List<Map<String, Object>> top = small.top(10);
+        Assertions.assertEquals(2, top.size());
+        Assertions.assertEquals("a", top.get(0).get("key"));
+        Assertions.assertEquals("c", top.get(1).get("key"));
+        Assertions.assertEquals(2L, top.get(1).get("count"));
+        Assertions.assertEquals(1L, top.get(1).get("error"));
+
+        // 偏斜分布下，每个被跟踪的key：count - error <= 真实次数 <= count，所有计数之和等于总访问次数
+        TopKeys topKeys = new TopKeys(20, 1);
+        Map<String, Long> actual = new HashMap<>();
+        Random random = new Random(42);
+        int total = 50000;
+        for (int i = 0; i < total; i++) {
+            String key = "key:" + (int) Math.pow(random.nextInt(1000) + 1, 2) / 10000;
+            topKeys.record(key);
+            actual.merge(key, 1L, Long::sum);
+        }
+        long sum = 0;
+        for (Map<String, Object> item : topKeys.top(20)) {
+            long count = (Long) item.get("count");
+            long error = (Long) item.get("error");
+            long real = actual.get((String) item.get("key"));
+            Assertions.assertTrue(count - error <= real && real <= count);
+            sum += count;
+        }
+        Assertions.assertEquals(total, sum);
+    }
+
+    @Test
+    void testNonPositiveLimit() {
+        TopKeys topKeys = new TopKeys(10, 1);
+        topKeys.record("key:1");
+        Assertions.assertTrue(topKeys.top(-1).isEmpty());
+        Assertions.assertTrue(topKeys.top(0).isEmpty());
+    }
+}